@@ -85,7 +85,6 @@ import android.text.TextUtils;
 import android.text.format.DateUtils;
 import android.text.format.Formatter;
 import android.util.Log;
-import android.util.SparseArray;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -121,7 +120,11 @@ import com.android.internal.telephony.Phone;
 import com.android.settings.drawable.InsetBoundsDrawable;
 import com.android.settings.net.ChartData;
 import com.android.settings.net.ChartDataLoader;
+import com.android.settings.net.CycleTotals;
+import com.android.settings.net.IntLongAccumulator;
+import com.android.settings.net.NetworkHistoryCache;
 import com.android.settings.net.NetworkPolicyEditor;
+import com.android.settings.net.SummaryCache;
 import com.android.settings.net.SummaryForAllUidLoader;
 import com.android.settings.net.UidDetail;
 import com.android.settings.net.UidDetailProvider;
@@ -189,6 +192,11 @@ public class DataUsageSummary extends Fragment {
 
     private SharedPreferences mPrefs;
 
+    /** Network history of recently shown tabs, refreshed incrementally. */
+    private final NetworkHistoryCache mHistoryCache = new NetworkHistoryCache();
+    /** Per-app summaries of recently shown cycles, and their neighbors. */
+    private final SummaryCache mSummaryCache = new SummaryCache();
+
     private TabHost mTabHost;
     private ViewGroup mTabsContainer;
     private TabWidget mTabWidget;
@@ -210,6 +218,7 @@ public class DataUsageSummary extends Fragment {
     private View mCycleView;
     private Spinner mCycleSpinner;
     private CycleAdapter mCycleAdapter;
+    private final CycleTotals mCycleTotals = new CycleTotals();
 
     private ChartDataUsageView mChart;
     private ChartNetworkSeriesView mSeries;
@@ -423,6 +432,8 @@ public class DataUsageSummary extends Fragment {
 
             @Override
             protected void onPostExecute(Void result) {
+                // stats of the current cycle have moved on
+                mSummaryCache.invalidateLive();
                 if (isAdded()) {
                     updateBody();
                 }
@@ -710,6 +721,15 @@ public class DataUsageSummary extends Fragment {
             throw new IllegalStateException("unknown tab: " + currentTab);
         }
 
+        // show any network history we already have while the loader only
+        // fetches what changed since.
+        if (!isAppDetailMode()) {
+            final NetworkStatsHistory cached = mHistoryCache.getCached(mTemplate);
+            if (cached != null) {
+                mChart.bindNetworkStats(cached);
+            }
+        }
+
         // kick off loader for network history
         // TODO: consider chaining two loaders together instead of reloading
         // network history when showing app detail.
@@ -1000,6 +1020,13 @@ public class DataUsageSummary extends Fragment {
         if (historyStart == Long.MAX_VALUE) historyStart = now;
         if (historyEnd == Long.MIN_VALUE) historyEnd = now + 1;
 
+        // totals for every cycle come from the charted history in one pass
+        NetworkStatsHistory totalsHistory = null;
+        if (mChartData != null) {
+            totalsHistory = isAppDetailMode() ? mChartData.detail : mChartData.network;
+        }
+        mCycleTotals.bind(totalsHistory);
+
         boolean hasCycles = false;
         if (policy != null) {
             // find the next cycle boundary
@@ -1010,7 +1037,7 @@ public class DataUsageSummary extends Fragment {
                 final long cycleStart = computeLastCycleBoundary(cycleEnd, policy);
                 Log.d(TAG, "generating cs=" + cycleStart + " to ce=" + cycleEnd + " waiting for hs="
                         + historyStart);
-                mCycleAdapter.add(new CycleItem(context, cycleStart, cycleEnd));
+                mCycleAdapter.add(buildCycleItem(context, cycleStart, cycleEnd, totalsHistory));
                 cycleEnd = cycleStart;
                 hasCycles = true;
             }
@@ -1024,7 +1051,7 @@ public class DataUsageSummary extends Fragment {
             long cycleEnd = historyEnd;
             while (cycleEnd > historyStart) {
                 final long cycleStart = cycleEnd - (DateUtils.WEEK_IN_MILLIS * 4);
-                mCycleAdapter.add(new CycleItem(context, cycleStart, cycleEnd));
+                mCycleAdapter.add(buildCycleItem(context, cycleStart, cycleEnd, totalsHistory));
                 cycleEnd = cycleStart;
             }
 
@@ -1050,6 +1077,15 @@ public class DataUsageSummary extends Fragment {
         }
     }
 
+    private CycleItem buildCycleItem(
+            Context context, long start, long end, NetworkStatsHistory totalsHistory) {
+        final CycleItem item = new CycleItem(context, start, end);
+        if (totalsHistory != null) {
+            item.setTotal(context, mCycleTotals.getTotal(start, end));
+        }
+        return item;
+    }
+
     private OnCheckedChangeListener mDataStatisticsEnabledListener =
         new OnCheckedChangeListener() {
         /** {@inheritDoc} */
@@ -1216,9 +1252,17 @@ public class DataUsageSummary extends Fragment {
                 entry = mChartData.network.getValues(start, end, now, null);
             }
 
-            // kick off loader for detailed stats
-            getLoaderManager().restartLoader(LOADER_SUMMARY,
-                    SummaryForAllUidLoader.buildArgs(mTemplate, start, end), mSummaryCallbacks);
+            final NetworkStats cached = mSummaryCache.get(mTemplate, start, end);
+            if (cached != null) {
+                // already have detailed stats; bind them right away
+                getLoaderManager().destroyLoader(LOADER_SUMMARY);
+                mSummaryCallbacks.onLoadFinished(null, cached);
+            } else {
+                // kick off loader for detailed stats
+                getLoaderManager().restartLoader(LOADER_SUMMARY,
+                        SummaryForAllUidLoader.buildArgs(mTemplate, start, end),
+                        mSummaryCallbacks);
+            }
         }
 
         final long totalBytes = entry != null ? entry.rxBytes + entry.txBytes : 0;
@@ -1233,7 +1277,7 @@ public class DataUsageSummary extends Fragment {
             ChartData>() {
         /** {@inheritDoc} */
         public Loader<ChartData> onCreateLoader(int id, Bundle args) {
-            return new ChartDataLoader(getActivity(), mStatsService, args);
+            return new ChartDataLoader(getActivity(), mStatsService, mHistoryCache, args);
         }
 
         /** {@inheritDoc} */
@@ -1264,13 +1308,14 @@ public class DataUsageSummary extends Fragment {
             NetworkStats>() {
         /** {@inheritDoc} */
         public Loader<NetworkStats> onCreateLoader(int id, Bundle args) {
-            return new SummaryForAllUidLoader(getActivity(), mStatsService, args);
+            return new SummaryForAllUidLoader(getActivity(), mStatsService, mSummaryCache, args);
         }
 
         /** {@inheritDoc} */
         public void onLoadFinished(Loader<NetworkStats> loader, NetworkStats data) {
             mAdapter.bindStats(data);
             updateEmptyVisible();
+            prefetchNeighborCycles();
         }
 
         /** {@inheritDoc} */
@@ -1285,6 +1330,28 @@ public class DataUsageSummary extends Fragment {
         }
     };
 
+    /**
+     * Prefetch detailed stats for the cycles before and after the selected
+     * one, using the inspection range selecting them would default to.
+     */
+    private void prefetchNeighborCycles() {
+        if (isAppDetailMode() || mTemplate == null) return;
+
+        final int position = mCycleSpinner.getSelectedItemPosition();
+        if (position == AdapterView.INVALID_POSITION) return;
+
+        for (int neighbor = position - 1; neighbor <= position + 1; neighbor += 2) {
+            if (neighbor < 0 || neighbor >= mCycleAdapter.getCount()) continue;
+
+            final CycleItem cycle = mCycleAdapter.getItem(neighbor);
+            if (cycle instanceof CycleChangeItem) continue;
+
+            final long start = mChart.getDefaultInspectStart(cycle.start, cycle.end);
+            final long end = mChart.getDefaultInspectEnd(cycle.start, cycle.end);
+            mSummaryCache.prefetch(mStatsService, mTemplate, start, end);
+        }
+    }
+
     private boolean isMobilePolicySplit() {
         final Context context = getActivity();
         if (hasMobileRadio(context)) {
@@ -1342,6 +1409,9 @@ public class DataUsageSummary extends Fragment {
         public long start;
         public long end;
 
+        /** Label including total usage, when known. */
+        private CharSequence mTotalLabel;
+
         CycleItem(CharSequence label) {
             this.label = label;
         }
@@ -1352,9 +1422,14 @@ public class DataUsageSummary extends Fragment {
             this.end = end;
         }
 
+        public void setTotal(Context context, long totalBytes) {
+            mTotalLabel = context.getString(R.string.data_usage_cycle_total, label,
+                    Formatter.formatFileSize(context, totalBytes));
+        }
+
         @Override
         public String toString() {
-            return label.toString();
+            return mTotalLabel != null ? mTotalLabel.toString() : label.toString();
         }
 
         @Override
@@ -1474,9 +1549,18 @@ public class DataUsageSummary extends Fragment {
         private final UidDetailProvider mProvider;
         private final int mInsetSide;
 
+        /** Rows ordered up front; about what fits on the first screen. */
+        private static final int FIRST_SCREEN_ITEMS = 16;
+
         private ArrayList<AppUsageItem> mItems = Lists.newArrayList();
         private long mLargest;
 
+        /** Number of leading {@link #mItems} that are in final order. */
+        private int mSortedCount;
+
+        private final IntLongAccumulator mAppTotals = new IntLongAccumulator();
+        private final IntLongAccumulator mSystemUids = new IntLongAccumulator();
+
         public DataUsageAdapter(UidDetailProvider provider, int insetSide) {
             mProvider = checkNotNull(provider);
             mInsetSide = insetSide;
@@ -1487,9 +1571,10 @@ public class DataUsageSummary extends Fragment {
          */
         public void bindStats(NetworkStats stats) {
             mItems.clear();
+            mAppTotals.clear();
+            mSystemUids.clear();
 
-            final AppUsageItem systemItem = new AppUsageItem(android.os.Process.SYSTEM_UID);
-            final SparseArray<AppUsageItem> knownUids = new SparseArray<AppUsageItem>();
+            long systemTotal = 0;
 
             NetworkStats.Entry entry = null;
             final int size = stats != null ? stats.size() : 0;
@@ -1500,29 +1585,84 @@ public class DataUsageSummary extends Fragment {
                 final boolean isApp = uid >= android.os.Process.FIRST_APPLICATION_UID
                         && uid <= android.os.Process.LAST_APPLICATION_UID;
                 if (isApp || uid == UID_REMOVED || uid == UID_TETHERING) {
-                    AppUsageItem item = knownUids.get(uid);
-                    if (item == null) {
-                        item = new AppUsageItem(uid);
-                        knownUids.put(uid, item);
-                        mItems.add(item);
-                    }
-
-                    item.total += entry.rxBytes + entry.txBytes;
+                    mAppTotals.add(uid, entry.rxBytes + entry.txBytes);
                 } else {
-                    systemItem.total += entry.rxBytes + entry.txBytes;
-                    systemItem.addUid(uid);
+                    systemTotal += entry.rxBytes + entry.txBytes;
+                    mSystemUids.add(uid, 0);
                 }
             }
 
-            if (systemItem.total > 0) {
+            final int appCount = mAppTotals.size();
+            mItems.ensureCapacity(appCount + 1);
+            for (int i = 0; i < appCount; i++) {
+                final AppUsageItem item = new AppUsageItem(mAppTotals.keyAt(i));
+                item.total = mAppTotals.valueAt(i);
+                mItems.add(item);
+            }
+
+            if (systemTotal > 0) {
+                final AppUsageItem systemItem = new AppUsageItem(android.os.Process.SYSTEM_UID);
+                systemItem.total = systemTotal;
+                for (int i = 0; i < mSystemUids.size(); i++) {
+                    systemItem.addUid(mSystemUids.keyAt(i));
+                }
                 mItems.add(systemItem);
             }
 
-            Collections.sort(mItems);
-            mLargest = (mItems.size() > 0) ? mItems.get(0).total : 0;
+            // only order what fits on first screen; the rest is sorted once
+            // the list scrolls past it.
+            final int count = mItems.size();
+            if (count > FIRST_SCREEN_ITEMS) {
+                selectLargest(mItems, FIRST_SCREEN_ITEMS);
+                Collections.sort(mItems.subList(0, FIRST_SCREEN_ITEMS));
+                mSortedCount = FIRST_SCREEN_ITEMS;
+            } else {
+                Collections.sort(mItems);
+                mSortedCount = count;
+            }
+
+            mLargest = (count > 0) ? mItems.get(0).total : 0;
             notifyDataSetChanged();
         }
 
+        /**
+         * Reorder the given items so that the {@code k} with largest total
+         * come first, in no particular order.
+         */
+        private static void selectLargest(ArrayList<AppUsageItem> items, int k) {
+            int left = 0;
+            int right = items.size() - 1;
+            while (left < right) {
+                final long pivot = items.get((left + right) >>> 1).total;
+                int i = left;
+                int j = right;
+                while (i <= j) {
+                    while (items.get(i).total > pivot) i++;
+                    while (items.get(j).total < pivot) j--;
+                    if (i <= j) {
+                        Collections.swap(items, i, j);
+                        i++;
+                        j--;
+                    }
+                }
+                if (k - 1 <= j) {
+                    right = j;
+                } else if (k - 1 >= i) {
+                    left = i;
+                } else {
+                    break;
+                }
+            }
+        }
+
+        private void ensureSorted(int position) {
+            final int count = mItems.size();
+            if (position >= mSortedCount && mSortedCount < count) {
+                Collections.sort(mItems.subList(mSortedCount, count));
+                mSortedCount = count;
+            }
+        }
+
         @Override
         public int getCount() {
             return mItems.size();
@@ -1530,11 +1670,13 @@ public class DataUsageSummary extends Fragment {
 
         @Override
         public Object getItem(int position) {
+            ensureSorted(position);
             return mItems.get(position);
         }
 
         @Override
         public long getItemId(int position) {
+            ensureSorted(position);
             return mItems.get(position).uids[0];
         }
 
@@ -1556,6 +1698,7 @@ public class DataUsageSummary extends Fragment {
                     android.R.id.progress);
 
             // kick off async load of app details
+            ensureSorted(position);
             final AppUsageItem item = mItems.get(position);
             UidDetailTask.bindView(mProvider, item, convertView);
 
@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.util.Log;
+
+import com.android.settings.applications.ApplicationsState.AppEntry;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * On-disk snapshot of the expensive parts of {@link AppEntry} (labels and
+ * sizes), so that a fresh process can show the application list without
+ * first reloading every label and querying every package size.
+ *
+ * <p>Records are keyed by package name and are only handed out again if the
+ * package's source dir and apk timestamp still match what was recorded.
+ * Sizes taken from the snapshot are always treated as stale, so the normal
+ * size pass revalidates them in the background.
+ *
+ * <p>Records are looked up from the loader threads as entries are created,
+ * so access to them is synchronized on the snapshot itself.
+ */
+final class AppEntrySnapshot {
+    static final String TAG = "AppEntrySnapshot";
+    static final boolean DEBUG = false;
+
+    static final String FILE_NAME = "app_entries.snapshot";
+
+    private static final int MAGIC = 0x41707053;
+    private static final int VERSION = 1;
+
+    static final class Record {
+        String packageName;
+        String sourceDir;
+        long timestamp;
+        String label;
+        String normalizedLabel;
+        long size;
+        long cacheSize;
+        long codeSize;
+        long dataSize;
+        long externalCodeSize;
+        long externalDataSize;
+        long internalSize;
+        long externalSize;
+        String sizeStr;
+        String internalSizeStr;
+        String externalSizeStr;
+    }
+
+    private final File mFile;
+    private final HashMap<String, Record> mRecords = new HashMap<String, Record>();
+    private String mLocale;
+    private boolean mLoaded;
+    private boolean mDirty;
+
+    AppEntrySnapshot(File dir) {
+        mFile = new File(dir, FILE_NAME);
+    }
+
+    /**
+     * Reads the snapshot from disk, if that hasn't been done yet.  Records
+     * written for a different locale are discarded since their labels would
+     * be wrong.
+     */
+    synchronized void loadIfNeeded(String locale) {
+        if (mLoaded) {
+            if (!locale.equals(mLocale)) {
+                mLocale = locale;
+                mRecords.clear();
+                mDirty = true;
+            }
+            return;
+        }
+        mLoaded = true;
+        mLocale = locale;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Log.w(TAG, "Ignoring snapshot with unknown format");
+                return;
+            }
+            if (!locale.equals(in.readUTF())) {
+                if (DEBUG) Log.i(TAG, "Ignoring snapshot from another locale");
+                return;
+            }
+            final int N = in.readInt();
+            for (int i=0; i<N; i++) {
+                String pkgName = in.readUTF();
+                Record rec = new Record();
+                rec.packageName = pkgName;
+                rec.sourceDir = in.readUTF();
+                rec.timestamp = in.readLong();
+                rec.label = in.readUTF();
+                rec.normalizedLabel = in.readUTF();
+                rec.size = in.readLong();
+                rec.cacheSize = in.readLong();
+                rec.codeSize = in.readLong();
+                rec.dataSize = in.readLong();
+                rec.externalCodeSize = in.readLong();
+                rec.externalDataSize = in.readLong();
+                rec.internalSize = in.readLong();
+                rec.externalSize = in.readLong();
+                rec.sizeStr = readNullableString(in);
+                rec.internalSizeStr = readNullableString(in);
+                rec.externalSizeStr = readNullableString(in);
+                mRecords.put(pkgName, rec);
+            }
+            if (DEBUG) Log.i(TAG, "Loaded " + N + " snapshot records");
+        } catch (FileNotFoundException e) {
+            // No snapshot yet.
+        } catch (IOException e) {
+            Log.w(TAG, "Failed reading snapshot", e);
+            mRecords.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the record for the given package if it still describes the
+     * installed apk, dropping it otherwise.
+     */
+    synchronized Record lookup(String pkgName, String sourceDir, long timestamp) {
+        Record rec = mRecords.get(pkgName);
+        if (rec == null) {
+            // Whatever we load now will have to be written out.
+            mDirty = true;
+            return null;
+        }
+        if (timestamp == 0 || rec.timestamp != timestamp || !rec.sourceDir.equals(sourceDir)) {
+            if (DEBUG) Log.i(TAG, "Dropping stale record for " + pkgName);
+            mRecords.remove(pkgName);
+            mDirty = true;
+            return null;
+        }
+        return rec;
+    }
+
+    synchronized void invalidate(String pkgName) {
+        if (mRecords.remove(pkgName) != null) {
+            mDirty = true;
+        }
+    }
+
+    synchronized void markDirty() {
+        mDirty = true;
+    }
+
+    synchronized boolean isDirty() {
+        return mDirty;
+    }
+
+    /**
+     * Captures the current state of the given entries, which must be
+     * protected by the caller; the result can be written without any lock.
+     */
+    synchronized ArrayList<Record> captureLocked(ArrayList<AppEntry> entries) {
+        ArrayList<Record> records = new ArrayList<Record>(entries.size());
+        for (int i=0; i<entries.size(); i++) {
+            AppEntry entry = entries.get(i);
+            synchronized (entry) {
+                if (!entry.mounted || entry.label == null || entry.labelTimestamp == 0) {
+                    continue;
+                }
+                Record rec = new Record();
+                rec.packageName = entry.info.packageName;
+                rec.sourceDir = entry.info.sourceDir;
+                rec.timestamp = entry.labelTimestamp;
+                rec.label = entry.label;
+                rec.normalizedLabel = entry.getNormalizedLabel();
+                rec.size = entry.size;
+                rec.cacheSize = entry.cacheSize;
+                rec.codeSize = entry.codeSize;
+                rec.dataSize = entry.dataSize;
+                rec.externalCodeSize = entry.externalCodeSize;
+                rec.externalDataSize = entry.externalDataSize;
+                rec.internalSize = entry.internalSize;
+                rec.externalSize = entry.externalSize;
+                rec.sizeStr = entry.sizeStr;
+                rec.internalSizeStr = entry.internalSizeStr;
+                rec.externalSizeStr = entry.externalSizeStr;
+                records.add(rec);
+                mRecords.put(rec.packageName, rec);
+            }
+        }
+        mDirty = false;
+        return records;
+    }
+
+    /**
+     * Writes previously captured records.  The file is replaced atomically so
+     * a crash mid-write leaves the old snapshot in place.
+     */
+    void write(ArrayList<Record> records) {
+        File tmp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        boolean ok = false;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(mLocale != null ? mLocale : "");
+            out.writeInt(records.size());
+            for (int i=0; i<records.size(); i++) {
+                Record rec = records.get(i);
+                out.writeUTF(rec.packageName);
+                out.writeUTF(rec.sourceDir);
+                out.writeLong(rec.timestamp);
+                out.writeUTF(rec.label);
+                out.writeUTF(rec.normalizedLabel);
+                out.writeLong(rec.size);
+                out.writeLong(rec.cacheSize);
+                out.writeLong(rec.codeSize);
+                out.writeLong(rec.dataSize);
+                out.writeLong(rec.externalCodeSize);
+                out.writeLong(rec.externalDataSize);
+                out.writeLong(rec.internalSize);
+                out.writeLong(rec.externalSize);
+                writeNullableString(out, rec.sizeStr);
+                writeNullableString(out, rec.internalSizeStr);
+                writeNullableString(out, rec.externalSizeStr);
+            }
+            out.flush();
+            ok = true;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed writing snapshot", e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    ok = false;
+                }
+            }
+        }
+        if (ok && tmp.renameTo(mFile)) {
+            if (DEBUG) Log.i(TAG, "Wrote " + records.size() + " snapshot records");
+        } else {
+            tmp.delete();
+        }
+    }
+
+    private static String readNullableString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeNullableString(DataOutputStream out, String str)
+            throws IOException {
+        out.writeBoolean(str != null);
+        if (str != null) {
+            out.writeUTF(str);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.util.Log;
+
+import com.android.settings.applications.ApplicationsState.AppEntry;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Accounts for the icons held by {@link AppEntry} objects and keeps them
+ * within a byte budget.  When over budget, the icons of the least recently
+ * shown entries that aren't currently on screen are dropped; they are loaded
+ * again when next needed.
+ */
+final class AppIconStore {
+    static final String TAG = "AppIconStore";
+    static final boolean DEBUG = false;
+
+    // Least recently used first.  Synchronize on this.
+    private final LinkedHashMap<AppEntry, Integer> mIcons
+            = new LinkedHashMap<AppEntry, Integer>(16, 0.75f, true);
+    private final long mBudget;
+    private long mBytes;
+
+    AppIconStore(long budget) {
+        mBudget = budget;
+    }
+
+    static int sizeOf(Drawable icon) {
+        if (icon instanceof BitmapDrawable) {
+            Bitmap bitmap = ((BitmapDrawable)icon).getBitmap();
+            if (bitmap != null) {
+                return bitmap.getRowBytes() * bitmap.getHeight();
+            }
+        }
+        int width = Math.max(icon.getIntrinsicWidth(), 1);
+        int height = Math.max(icon.getIntrinsicHeight(), 1);
+        return width * height * 4;
+    }
+
+    /**
+     * Records a newly loaded icon of the entry, and makes room for it if
+     * needed.
+     */
+    void add(AppEntry entry, Drawable icon) {
+        ArrayList<AppEntry> evicted;
+        synchronized (this) {
+            Integer old = mIcons.put(entry, sizeOf(icon));
+            if (old != null) {
+                mBytes -= old;
+            }
+            mBytes += mIcons.get(entry);
+            evicted = trimLocked(mBudget);
+        }
+        clearIcons(evicted);
+    }
+
+    /**
+     * Marks the entry's icon as just used.
+     */
+    synchronized void touch(AppEntry entry) {
+        mIcons.get(entry);
+    }
+
+    synchronized void remove(AppEntry entry) {
+        Integer old = mIcons.remove(entry);
+        if (old != null) {
+            mBytes -= old;
+        }
+    }
+
+    synchronized void clear() {
+        mIcons.clear();
+        mBytes = 0;
+    }
+
+    /**
+     * Whether prefetching more icons would only push out others.
+     */
+    synchronized boolean isFull() {
+        return mBytes >= mBudget;
+    }
+
+    /**
+     * Drops icons that aren't on screen until at most the given number of
+     * bytes is held.
+     */
+    void trimTo(long bytes) {
+        ArrayList<AppEntry> evicted;
+        synchronized (this) {
+            evicted = trimLocked(bytes);
+        }
+        clearIcons(evicted);
+    }
+
+    synchronized int getIconCount() {
+        return mIcons.size();
+    }
+
+    synchronized long getIconBytes() {
+        return mBytes;
+    }
+
+    long getBudget() {
+        return mBudget;
+    }
+
+    private ArrayList<AppEntry> trimLocked(long bytes) {
+        ArrayList<AppEntry> evicted = null;
+        Iterator<Map.Entry<AppEntry, Integer>> it = mIcons.entrySet().iterator();
+        while (mBytes > bytes && it.hasNext()) {
+            Map.Entry<AppEntry, Integer> e = it.next();
+            if (e.getKey().visibleCount > 0) {
+                continue;
+            }
+            mBytes -= e.getValue();
+            it.remove();
+            if (evicted == null) {
+                evicted = new ArrayList<AppEntry>();
+            }
+            evicted.add(e.getKey());
+        }
+        return evicted;
+    }
+
+    private void clearIcons(ArrayList<AppEntry> evicted) {
+        if (evicted == null) {
+            return;
+        }
+        for (int i=0; i<evicted.size(); i++) {
+            AppEntry entry = evicted.get(i);
+            synchronized (entry) {
+                if (entry.mounted) {
+                    entry.icon = null;
+                }
+            }
+        }
+        if (DEBUG) Log.i(TAG, "Evicted " + evicted.size() + " icons");
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import com.android.settings.applications.ApplicationsState.AppEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Word-start index over the normalized labels of a list of entries, used to
+ * answer the "label or one of its words starts with this prefix" query of
+ * the applications list filter without scanning every label.
+ *
+ * <p>Every position in a label where a word starts contributes one key: the
+ * rest of the label from that position.  The keys are sorted, so the keys
+ * matching a prefix form one contiguous range that is found by binary
+ * search.  An index is immutable once built and can be used from any thread.
+ */
+final class AppLabelIndex {
+    /**
+     * Result of one prefix query.  When the next prefix only extends this
+     * one, the next query searches within this result instead of starting
+     * over.
+     */
+    static final class Result {
+        final ArrayList<AppEntry> base;
+        final String prefix;
+        final AppLabelIndex index;
+        final int lo;
+        final int hi;
+        final ArrayList<AppEntry> entries;
+
+        Result(ArrayList<AppEntry> base, String prefix, AppLabelIndex index, int lo, int hi,
+                ArrayList<AppEntry> entries) {
+            this.base = base;
+            this.prefix = prefix;
+            this.index = index;
+            this.lo = lo;
+            this.hi = hi;
+            this.entries = entries;
+        }
+
+        boolean canNarrow(ArrayList<AppEntry> newBase, String newPrefix) {
+            return base == newBase && newPrefix.startsWith(prefix);
+        }
+    }
+
+    private static final class Key {
+        final String key;
+        final int position;
+
+        Key(String key, int position) {
+            this.key = key;
+            this.position = position;
+        }
+    }
+
+    private static final Comparator<Key> KEY_COMPARATOR = new Comparator<Key>() {
+        @Override
+        public int compare(Key object1, Key object2) {
+            return object1.key.compareTo(object2.key);
+        }
+    };
+
+    final ArrayList<AppEntry> mEntries;
+    final String[] mKeys;
+    final int[] mPositions;
+
+    private AppLabelIndex(ArrayList<AppEntry> entries, String[] keys, int[] positions) {
+        mEntries = entries;
+        mKeys = keys;
+        mPositions = positions;
+    }
+
+    static AppLabelIndex build(ArrayList<AppEntry> entries) {
+        ArrayList<Key> keys = new ArrayList<Key>(entries.size() * 2);
+        for (int i=0; i<entries.size(); i++) {
+            String nlabel = entries.get(i).getNormalizedLabel();
+            int start = 0;
+            while (start < nlabel.length()) {
+                keys.add(new Key(start == 0 ? nlabel : nlabel.substring(start), i));
+                int space = nlabel.indexOf(' ', start);
+                if (space < 0) {
+                    break;
+                }
+                start = space + 1;
+            }
+        }
+        Key[] sorted = keys.toArray(new Key[keys.size()]);
+        Arrays.sort(sorted, KEY_COMPARATOR);
+        String[] keyArray = new String[sorted.length];
+        int[] positions = new int[sorted.length];
+        for (int i=0; i<sorted.length; i++) {
+            keyArray[i] = sorted[i].key;
+            positions[i] = sorted[i].position;
+        }
+        return new AppLabelIndex(entries, keyArray, positions);
+    }
+
+    /**
+     * Finds the entries matching an already normalized prefix, in the order
+     * of the indexed list.
+     */
+    Result query(String prefix, Result last) {
+        int lo = 0;
+        int hi = mKeys.length;
+        if (last != null && last.index == this && last.canNarrow(mEntries, prefix)) {
+            lo = last.lo;
+            hi = last.hi;
+        }
+
+        // First key >= prefix.
+        int first = lo, end = hi;
+        while (first < end) {
+            int mid = (first + end) >>> 1;
+            if (mKeys[mid].compareTo(prefix) < 0) {
+                first = mid + 1;
+            } else {
+                end = mid;
+            }
+        }
+        // First key after that which doesn't start with the prefix.
+        int matchEnd = first;
+        end = hi;
+        while (matchEnd < end) {
+            int mid = (matchEnd + end) >>> 1;
+            if (mKeys[mid].startsWith(prefix)) {
+                matchEnd = mid + 1;
+            } else {
+                end = mid;
+            }
+        }
+
+        // Several words of one label may match; report each entry once,
+        // in list order.
+        int[] matches = new int[matchEnd - first];
+        System.arraycopy(mPositions, first, matches, 0, matches.length);
+        Arrays.sort(matches);
+        ArrayList<AppEntry> entries = new ArrayList<AppEntry>(matches.length);
+        for (int i=0; i<matches.length; i++) {
+            if (i == 0 || matches[i] != matches[i-1]) {
+                entries.add(mEntries.get(matches[i]));
+            }
+        }
+        return new Result(mEntries, prefix, this, first, matchEnd, entries);
+    }
+
+    /**
+     * Same query by scanning labels, for when there is no index for the list
+     * yet.  Still only scans the last result if the prefix was extended.
+     */
+    static Result queryLinear(ArrayList<AppEntry> base, String prefix, Result last) {
+        ArrayList<AppEntry> source = base;
+        if (last != null && last.canNarrow(base, prefix)) {
+            source = last.entries;
+        }
+        final String spacePrefix = " " + prefix;
+        ArrayList<AppEntry> entries = new ArrayList<AppEntry>();
+        for (int i=0; i<source.size(); i++) {
+            AppEntry entry = source.get(i);
+            String nlabel = entry.getNormalizedLabel();
+            if (nlabel.startsWith(prefix) || nlabel.indexOf(spacePrefix) != -1) {
+                entries.add(entry);
+            }
+        }
+        return new Result(base, prefix, null, 0, 0, entries);
+    }
+}
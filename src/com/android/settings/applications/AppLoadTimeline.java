@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import java.io.PrintWriter;
+
+/**
+ * Timing of the phases {@link ApplicationsState} goes through while
+ * loading, kept as fixed-size histograms so recording doesn't allocate and
+ * can stay enabled.  Durations are bucketed by powers of two of
+ * microseconds.  Read back through {@link #dump}.
+ */
+final class AppLoadTimeline {
+    // Whole passes over the application list; for icons, until the ones
+    // on screen are all loaded.
+    static final int PHASE_ENTRIES = 0;
+    static final int PHASE_ICONS = 1;
+    static final int PHASE_SIZES = 2;
+    // Individual pieces of work.
+    static final int LABEL_LOAD = 3;
+    static final int ICON_LOAD = 4;
+    static final int SIZE_REQUEST = 5;
+    static final int REBUILD_FILTER = 6;
+    static final int REBUILD_SORT = 7;
+    static final int REBUILD_UPDATE = 8;
+    // The entries lock.
+    static final int LOCK_WAIT = 9;
+    static final int LOCK_HOLD = 10;
+    static final int NUM_PHASES = 11;
+
+    static final String[] PHASE_NAMES = {
+        "entries", "visible icons", "sizes", "label load", "icon load", "size request",
+        "rebuild filter", "rebuild sort", "rebuild update", "lock wait", "lock hold",
+    };
+
+    // Bucket i holds durations below 2^i microseconds; the last one
+    // everything longer (over ~16s).
+    static final int NUM_BUCKETS = 25;
+
+    // All of the following are protected by 'this'.
+    private final long[] mBuckets = new long[NUM_PHASES * NUM_BUCKETS];
+    private final long[] mCounts = new long[NUM_PHASES];
+    private final long[] mTotals = new long[NUM_PHASES];
+    private final long[] mMax = new long[NUM_PHASES];
+    private final long[] mLast = new long[NUM_PHASES];
+
+    /**
+     * Returns the start time to hand to {@link #end}.
+     */
+    static long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the time since the given start for the phase, and returns
+     * the current time so it can be used to start the next phase.
+     */
+    long end(int phase, long startNanos) {
+        long now = System.nanoTime();
+        record(phase, (now - startNanos) / 1000);
+        return now;
+    }
+
+    /**
+     * Records a duration, in microseconds.
+     */
+    synchronized void record(int phase, long micros) {
+        if (micros < 0) {
+            micros = 0;
+        }
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        if (bucket >= NUM_BUCKETS) {
+            bucket = NUM_BUCKETS - 1;
+        }
+        mBuckets[phase * NUM_BUCKETS + bucket]++;
+        mCounts[phase]++;
+        mTotals[phase] += micros;
+        mLast[phase] = micros;
+        if (micros > mMax[phase]) {
+            mMax[phase] = micros;
+        }
+    }
+
+    synchronized long getCount(int phase) {
+        return mCounts[phase];
+    }
+
+    synchronized void reset() {
+        for (int i=0; i<mBuckets.length; i++) {
+            mBuckets[i] = 0;
+        }
+        for (int i=0; i<NUM_PHASES; i++) {
+            mCounts[i] = 0;
+            mTotals[i] = 0;
+            mMax[i] = 0;
+            mLast[i] = 0;
+        }
+    }
+
+    /**
+     * Approximate percentile of the phase's durations, in microseconds:
+     * the upper bound of the bucket it falls in.
+     */
+    synchronized long getPercentile(int phase, int percent) {
+        long count = mCounts[phase];
+        if (count == 0) {
+            return 0;
+        }
+        long target = (count * percent + 99) / 100;
+        long seen = 0;
+        for (int i=0; i<NUM_BUCKETS; i++) {
+            seen += mBuckets[phase * NUM_BUCKETS + i];
+            if (seen >= target) {
+                return i < NUM_BUCKETS - 1 ? 1L << i : mMax[phase];
+            }
+        }
+        return mMax[phase];
+    }
+
+    synchronized void dump(String prefix, PrintWriter pw) {
+        for (int phase=0; phase<NUM_PHASES; phase++) {
+            long count = mCounts[phase];
+            pw.print(prefix); pw.print(PHASE_NAMES[phase]); pw.print(": ");
+            if (count == 0) {
+                pw.println("none");
+                continue;
+            }
+            pw.print("n="); pw.print(count);
+            pw.print(" avg="); printMicros(pw, mTotals[phase] / count);
+            pw.print(" p50<"); printMicros(pw, getPercentile(phase, 50));
+            pw.print(" p90<"); printMicros(pw, getPercentile(phase, 90));
+            pw.print(" p99<"); printMicros(pw, getPercentile(phase, 99));
+            pw.print(" max="); printMicros(pw, mMax[phase]);
+            pw.print(" last="); printMicros(pw, mLast[phase]);
+            pw.println();
+        }
+    }
+
+    private static void printMicros(PrintWriter pw, long micros) {
+        if (micros >= 10000) {
+            pw.print(micros / 1000); pw.print("ms");
+        } else {
+            pw.print(micros); pw.print("us");
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+
+/**
+ * Small fixed pool of background threads used by {@link ApplicationsState}
+ * to load labels and icons.  Work is taken from a priority queue so rows
+ * that are on screen can be moved ahead of prefetching, and work a caller
+ * is blocked on ahead of both; within a priority, work runs in the order
+ * it was queued.
+ */
+final class AppLoaderPool {
+    static final String TAG = "AppLoaderPool";
+    static final boolean DEBUG = false;
+
+    static final int PRIORITY_BACKGROUND = 0;
+    static final int PRIORITY_VISIBLE = 1;
+    // Work queued by runAll(), whose caller waits for it.
+    static final int PRIORITY_BLOCKING = 2;
+
+    static final int MAX_THREADS = 4;
+
+    static final class Task implements Comparable<Task> {
+        final Object key;
+        final Runnable runnable;
+        final long seq;
+        final int priority;
+        boolean cancelled;
+
+        Task(Object key, Runnable runnable, long seq, int priority) {
+            this.key = key;
+            this.runnable = runnable;
+            this.seq = seq;
+            this.priority = priority;
+        }
+
+        @Override
+        public int compareTo(Task another) {
+            if (priority != another.priority) {
+                return priority > another.priority ? -1 : 1;
+            }
+            return seq < another.seq ? -1 : (seq > another.seq ? 1 : 0);
+        }
+    }
+
+    // All of the following are protected by mQueue.
+    final PriorityQueue<Task> mQueue = new PriorityQueue<Task>();
+    final HashMap<Object, Task> mPending = new HashMap<Object, Task>();
+    final ArrayList<Thread> mWorkers = new ArrayList<Thread>();
+    final int mMaxThreads;
+    long mSeq;
+    int mIdleWorkers;
+
+    // Time until all work at PRIORITY_VISIBLE has drained, measured from
+    // when the first such task was queued after reportNextVisibleDrain().
+    int mVisibleOutstanding;
+    long mVisibleStartTime;
+    boolean mReportVisibleDrain;
+    long mLastVisibleDrainTime = -1;
+
+    final AppLoadTimeline mTimeline;
+
+    AppLoaderPool(AppLoadTimeline timeline) {
+        mTimeline = timeline;
+        int cpus = Runtime.getRuntime().availableProcessors();
+        mMaxThreads = Math.max(2, Math.min(cpus, MAX_THREADS));
+    }
+
+    /**
+     * Queues keyed work.  If work with the same key is already waiting it
+     * is not queued again, but is replaced by this one if the new priority
+     * is higher.
+     */
+    void execute(Object key, int priority, Runnable runnable) {
+        synchronized (mQueue) {
+            Task existing = mPending.get(key);
+            if (existing != null) {
+                if (priority > existing.priority) {
+                    existing.cancelled = true;
+                    enqueueLocked(key, priority, runnable);
+                }
+                return;
+            }
+            enqueueLocked(key, priority, runnable);
+        }
+    }
+
+    /**
+     * Runs all of the given work on the pool and waits for it to complete.
+     * It is run ahead of any other work queued.
+     */
+    void runAll(ArrayList<Runnable> runnables) {
+        final int[] remaining = new int[] { runnables.size() };
+        synchronized (remaining) {
+            for (int i=0; i<runnables.size(); i++) {
+                final Runnable r = runnables.get(i);
+                final Runnable wrapper = new Runnable() {
+                    public void run() {
+                        try {
+                            r.run();
+                        } finally {
+                            synchronized (remaining) {
+                                remaining[0]--;
+                                if (remaining[0] == 0) {
+                                    remaining.notifyAll();
+                                }
+                            }
+                        }
+                    }
+                };
+                synchronized (mQueue) {
+                    enqueueLocked(wrapper, PRIORITY_BLOCKING, wrapper);
+                }
+            }
+            while (remaining[0] > 0) {
+                try {
+                    remaining.wait();
+                } catch (InterruptedException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Arms a one-shot report of how long it takes for all visible work to
+     * finish, starting with the next visible task queued.
+     */
+    void reportNextVisibleDrain() {
+        synchronized (mQueue) {
+            mReportVisibleDrain = true;
+            mVisibleStartTime = 0;
+        }
+    }
+
+    long getLastVisibleDrainTime() {
+        synchronized (mQueue) {
+            return mLastVisibleDrainTime;
+        }
+    }
+
+    private void enqueueLocked(Object key, int priority, Runnable runnable) {
+        Task task = new Task(key, runnable, mSeq++, priority);
+        mPending.put(key, task);
+        mQueue.add(task);
+        if (priority == PRIORITY_VISIBLE) {
+            if (mVisibleOutstanding == 0 && mReportVisibleDrain && mVisibleStartTime == 0) {
+                mVisibleStartTime = SystemClock.uptimeMillis();
+            }
+            mVisibleOutstanding++;
+        }
+        if (mIdleWorkers > 0) {
+            mQueue.notify();
+        } else if (mWorkers.size() < mMaxThreads) {
+            Thread worker = new Worker(mWorkers.size());
+            mWorkers.add(worker);
+            worker.start();
+        }
+    }
+
+    private void finishedLocked(Task task) {
+        if (task.priority == PRIORITY_VISIBLE) {
+            mVisibleOutstanding--;
+            if (mVisibleOutstanding == 0 && mVisibleStartTime != 0) {
+                mLastVisibleDrainTime = SystemClock.uptimeMillis() - mVisibleStartTime;
+                mVisibleStartTime = 0;
+                mReportVisibleDrain = false;
+                mTimeline.record(AppLoadTimeline.PHASE_ICONS, mLastVisibleDrainTime * 1000);
+                if (DEBUG) {
+                    Log.i(TAG, "All visible icons loaded in " + mLastVisibleDrainTime + "ms");
+                }
+            }
+        }
+    }
+
+    final class Worker extends Thread {
+        Worker(int index) {
+            super("ApplicationsState.Loader#" + index);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            while (true) {
+                Task task;
+                synchronized (mQueue) {
+                    while ((task = mQueue.poll()) == null) {
+                        mIdleWorkers++;
+                        try {
+                            mQueue.wait();
+                        } catch (InterruptedException e) {
+                        }
+                        mIdleWorkers--;
+                    }
+                    if (task.cancelled) {
+                        finishedLocked(task);
+                        continue;
+                    }
+                    if (mPending.get(task.key) == task) {
+                        mPending.remove(task.key);
+                    }
+                }
+                try {
+                    task.runnable.run();
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Failure loading application info", e);
+                }
+                synchronized (mQueue) {
+                    finishedLocked(task);
+                }
+            }
+        }
+    }
+}
@@ -1,7 +1,9 @@
 package com.android.settings.applications;
 
+import android.app.ActivityManager;
 import android.app.Application;
 import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
@@ -10,6 +12,7 @@ import android.content.pm.IPackageStatsObserver;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageStats;
 import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.res.Configuration;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Handler;
@@ -21,7 +24,11 @@ import android.os.SystemClock;
 import android.text.format.Formatter;
 import android.util.Log;
 
+import com.android.settings.R;
+
 import java.io.File;
+import java.io.PrintWriter;
+import java.text.CollationKey;
 import java.text.Collator;
 import java.text.Normalizer;
 import java.text.Normalizer.Form;
@@ -29,7 +36,13 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Pattern;
 
 /**
@@ -46,7 +59,7 @@ public class ApplicationsState {
         public void onPackageListChanged();
         public void onRebuildComplete(ArrayList<AppEntry> apps);
         public void onPackageIconChanged();
-        public void onPackageSizeChanged(String packageName);
+        public void onPackageSizeChanged(ArrayList<String> packageNames);
         public void onAllSizesComputed();
     }
 
@@ -67,6 +80,20 @@ public class ApplicationsState {
                 .replaceAll("").toLowerCase();
     }
 
+    // Collator behind AppEntry.getCollationKey().  Replaced when the locale
+    // changes, which makes every entry compute its key again.
+    static volatile Collator sCollator = Collator.getInstance();
+    static Locale sCollatorLocale = Locale.getDefault();
+
+    static void updateCollator(Locale locale) {
+        synchronized (sLock) {
+            if (!locale.equals(sCollatorLocale)) {
+                sCollatorLocale = locale;
+                sCollator = Collator.getInstance(locale);
+            }
+        }
+    }
+
     public static class SizeInfo {
         long cacheSize;
         long codeSize;
@@ -75,6 +102,16 @@ public class ApplicationsState {
         long externalDataSize;
     }
     
+    static final class CollationKeyHolder {
+        final Collator collator;
+        final CollationKey key;
+
+        CollationKeyHolder(Collator collator, CollationKey key) {
+            this.collator = collator;
+            this.key = key;
+        }
+    }
+
     public static class AppEntry extends SizeInfo {
         final File apkFile;
         final long id;
@@ -93,39 +130,144 @@ public class ApplicationsState {
             return normalizedLabel;
         }
 
-        // Need to synchronize on 'this' for the following.
+        // Need to synchronize on 'this' for the following.  The icon and
+        // size strings are also read by the main thread without the lock.
         ApplicationInfo info;
-        Drawable icon;
-        String sizeStr;
-        String internalSizeStr;
-        String externalSizeStr;
+        volatile Drawable icon;
+        volatile String sizeStr;
+        volatile String internalSizeStr;
+        volatile String externalSizeStr;
         boolean sizeStale;
         long sizeLoadStart;
 
         String normalizedLabel;
 
+        // Modification time of the apk the label was loaded from.
+        long labelTimestamp;
+
+        // Last time the entry was bound to a row on screen, or 0.
+        long visibleTime;
+        // Number of rows currently showing the entry.  Only changed on the
+        // main thread, but read by icon eviction on the loader threads.
+        volatile int visibleCount;
+
+        // Key of the label for sCollator; computed when first needed.  The
+        // key and its collator are published together, since keys may be
+        // computed on several threads while the locale changes.
+        volatile CollationKeyHolder collationKey;
+
+        CollationKey getCollationKey() {
+            final Collator collator = sCollator;
+            CollationKeyHolder holder = collationKey;
+            if (holder == null || holder.collator != collator) {
+                final CollationKey key;
+                // Collators aren't thread safe.
+                synchronized (collator) {
+                    key = collator.getCollationKey(label);
+                }
+                holder = new CollationKeyHolder(collator, key);
+                collationKey = holder;
+            }
+            return holder.key;
+        }
+
         AppEntry(Context context, ApplicationInfo info, long id) {
             apkFile = new File(info.sourceDir);
             this.id = id;
             this.info = info;
             this.size = SIZE_UNKNOWN;
             this.sizeStale = true;
-            ensureLabel(context);
         }
-        
+
+        /**
+         * Loads the label of a new entry, taking it from the snapshot if
+         * the apk hasn't changed since.  Called before the entry is
+         * published, so no locking is needed.
+         */
+        void initLabel(Context context, AppEntrySnapshot snapshot) {
+            AppEntrySnapshot.Record rec = snapshot.lookup(info.packageName, info.sourceDir,
+                    apkFile.lastModified());
+            if (rec != null) {
+                restoreFrom(rec);
+            } else {
+                ensureLabel(context);
+            }
+        }
+
+        void restoreFrom(AppEntrySnapshot.Record rec) {
+            this.mounted = true;
+            this.label = rec.label;
+            this.normalizedLabel = rec.normalizedLabel;
+            this.collationKey = null;
+            this.labelTimestamp = rec.timestamp;
+            // Sizes stay stale so they get recomputed in the background.
+            this.size = rec.size;
+            this.cacheSize = rec.cacheSize;
+            this.codeSize = rec.codeSize;
+            this.dataSize = rec.dataSize;
+            this.externalCodeSize = rec.externalCodeSize;
+            this.externalDataSize = rec.externalDataSize;
+            this.internalSize = rec.internalSize;
+            this.externalSize = rec.externalSize;
+            this.sizeStr = rec.sizeStr;
+            this.internalSizeStr = rec.internalSizeStr;
+            this.externalSizeStr = rec.externalSizeStr;
+        }
+
         void ensureLabel(Context context) {
             if (this.label == null || !this.mounted) {
                 if (!this.apkFile.exists()) {
                     this.mounted = false;
                     this.label = info.packageName;
+                    this.normalizedLabel = null;
+                    this.collationKey = null;
                 } else {
                     this.mounted = true;
                     CharSequence label = info.loadLabel(context.getPackageManager());
                     this.label = label != null ? label.toString() : info.packageName;
+                    this.normalizedLabel = null;
+                    this.collationKey = null;
+                    this.labelTimestamp = apkFile.lastModified();
                 }
             }
         }
         
+        /**
+         * Loads the icon without holding any lock; the result is then
+         * handed to applyIconLocked().  Returns null if the apk is missing.
+         */
+        Drawable loadIcon(PackageManager pm) {
+            return this.apkFile.exists() ? this.info.loadIcon(pm) : null;
+        }
+
+        boolean needsIconLocked() {
+            return this.icon == null || !this.mounted;
+        }
+
+        /**
+         * Same as ensureIconLocked(), but with the icon already loaded.
+         * Returns true if the icon that should be shown changed.
+         */
+        boolean applyIconLocked(Context context, Drawable loaded) {
+            if (this.icon == null) {
+                if (loaded != null) {
+                    this.icon = loaded;
+                } else {
+                    this.mounted = false;
+                    this.icon = context.getResources().getDrawable(
+                            com.android.internal.R.drawable.sym_app_on_sd_unavailable_icon);
+                }
+                return true;
+            } else if (!this.mounted && loaded != null) {
+                // If the app wasn't mounted but is now mounted, use
+                // its real icon.
+                this.mounted = true;
+                this.icon = loaded;
+                return true;
+            }
+            return false;
+        }
+
         boolean ensureIconLocked(Context context, PackageManager pm) {
             if (this.icon == null) {
                 if (this.apkFile.exists()) {
@@ -150,46 +292,42 @@ public class ApplicationsState {
     }
 
     public static final Comparator<AppEntry> ALPHA_COMPARATOR = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
         @Override
         public int compare(AppEntry object1, AppEntry object2) {
             if (object1.info.enabled != object2.info.enabled) {
                 return object1.info.enabled ? -1 : 1;
             }
-            return sCollator.compare(object1.label, object2.label);
+            return object1.getCollationKey().compareTo(object2.getCollationKey());
         }
     };
 
     public static final Comparator<AppEntry> SIZE_COMPARATOR
             = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
         @Override
         public int compare(AppEntry object1, AppEntry object2) {
             if (object1.size < object2.size) return 1;
             if (object1.size > object2.size) return -1;
-            return sCollator.compare(object1.label, object2.label);
+            return object1.getCollationKey().compareTo(object2.getCollationKey());
         }
     };
 
     public static final Comparator<AppEntry> INTERNAL_SIZE_COMPARATOR
             = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
         @Override
         public int compare(AppEntry object1, AppEntry object2) {
             if (object1.internalSize < object2.internalSize) return 1;
             if (object1.internalSize > object2.internalSize) return -1;
-            return sCollator.compare(object1.label, object2.label);
+            return object1.getCollationKey().compareTo(object2.getCollationKey());
         }
     };
 
     public static final Comparator<AppEntry> EXTERNAL_SIZE_COMPARATOR
             = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
         @Override
         public int compare(AppEntry object1, AppEntry object2) {
             if (object1.externalSize < object2.externalSize) return 1;
             if (object1.externalSize > object2.externalSize) return -1;
-            return sCollator.compare(object1.label, object2.label);
+            return object1.getCollationKey().compareTo(object2.getCollationKey());
         }
     };
 
@@ -224,6 +362,16 @@ public class ApplicationsState {
 
     final Context mContext;
     final PackageManager mPm;
+    final AppEntrySnapshot mSnapshot;
+    // Locale the snapshot is loaded for; set on resume, read by the
+    // background thread.
+    volatile String mSnapshotLocale;
+    final AppLoadTimeline mTimeline = new AppLoadTimeline();
+    final AppLoaderPool mLoaderPool = new AppLoaderPool(mTimeline);
+    final AppIconStore mIconStore;
+
+    // Fraction of the process memory class that loaded icons may use.
+    static final int ICON_BUDGET_DIVISOR = 8;
     PackageIntentReceiver mPackageIntentReceiver;
 
     boolean mResumed;
@@ -236,12 +384,66 @@ public class ApplicationsState {
     final ArrayList<AppEntry> mAppEntries = new ArrayList<AppEntry>();
     List<ApplicationInfo> mApplications = new ArrayList<ApplicationInfo>();
     long mCurId = 1;
-    String mCurComputingSizePkg;
+    // Bumped whenever entries are added to or removed from mEntriesMap.
+    int mEntriesVersion;
+
+    /**
+     * Immutable copy of mEntriesMap as of some version.  A new one is
+     * published whenever the set of entries changes, so the main thread
+     * can look entries up without waiting for mEntriesMap.
+     */
+    static final class PublishedEntries {
+        final int version;
+        final HashMap<String, AppEntry> entries;
+
+        PublishedEntries(int version, HashMap<String, AppEntry> entries) {
+            this.version = version;
+            this.entries = entries;
+        }
+    }
+
+    final AtomicReference<PublishedEntries> mPublishedEntries
+            = new AtomicReference<PublishedEntries>(
+                    new PublishedEntries(0, new HashMap<String, AppEntry>()));
+
+    // Package sizes are computed with up to mSizeRequestWindow requests to
+    // the package manager outstanding, working through mSizeQueue from
+    // mSizeQueuePos.  Synchronize on mEntriesMap.
+    static final long SIZE_REQUEST_TIMEOUT = 20*1000;
+    final int mSizeRequestWindow;
+    final HashSet<String> mSizeRequestsInFlight = new HashSet<String>();
+    final ArrayList<AppEntry> mSizeQueue = new ArrayList<AppEntry>();
+    int mSizeQueuePos;
+
+    // Packages whose size changed since the callbacks were last told;
+    // everything that arrives within one frame is reported together.
+    // Synchronize on the list itself.
+    static final long SIZE_CHANGE_BATCH_DELAY = 16;
+    final ArrayList<String> mPendingSizeChanges = new ArrayList<String>();
+
+    // Package broadcasts not yet applied, by package name; true if the
+    // entry must be reloaded.  Broadcasts arriving within the delay are
+    // applied together, and from this many packages on they are looked up
+    // with a single query.  Synchronize on the map itself.
+    static final long PACKAGE_EVENT_BATCH_DELAY = 100;
+    static final int BULK_QUERY_THRESHOLD = 8;
+    final LinkedHashMap<String, Boolean> mPendingPackageEvents
+            = new LinkedHashMap<String, Boolean>();
+
+    // Incrementally maintained results of recent rebuilds, one per
+    // (filter, comparator) pair.  Synchronize on mEntriesMap.
+    static final int MAX_SORTED_VIEWS = 4;
+    final ArrayList<SortedAppEntries> mSortedViews = new ArrayList<SortedAppEntries>();
+    long mSortedViewsClock;
+    // Copy of mSortedViews for rebuild() to find clean results in without
+    // taking the lock.
+    volatile SortedAppEntries[] mPublishedViews = new SortedAppEntries[0];
 
     // Rebuilding of app list.  Synchronized on mRebuildSync.
     final Object mRebuildSync = new Object();
     boolean mRebuildRequested;
     boolean mRebuildAsync;
+    int mRebuildGeneration;
     AppFilter mRebuildFilter;
     Comparator<AppEntry> mRebuildComparator;
     ArrayList<AppEntry> mRebuildResult;
@@ -268,15 +470,15 @@ public class ApplicationsState {
              if (Intent.ACTION_PACKAGE_ADDED.equals(actionStr)) {
                  Uri data = intent.getData();
                  String pkgName = data.getEncodedSchemeSpecificPart();
-                 addPackage(pkgName);
+                 queuePackageEvent(pkgName, false);
              } else if (Intent.ACTION_PACKAGE_REMOVED.equals(actionStr)) {
                  Uri data = intent.getData();
                  String pkgName = data.getEncodedSchemeSpecificPart();
-                 removePackage(pkgName);
+                 queuePackageEvent(pkgName, true);
              } else if (Intent.ACTION_PACKAGE_CHANGED.equals(actionStr)) {
                  Uri data = intent.getData();
                  String pkgName = data.getEncodedSchemeSpecificPart();
-                 invalidatePackage(pkgName);
+                 queuePackageEvent(pkgName, true);
              } else if (Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE.equals(actionStr) ||
                      Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE.equals(actionStr)) {
                  // When applications become available or unavailable (perhaps because
@@ -293,7 +495,7 @@ public class ApplicationsState {
                  boolean avail = Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE.equals(actionStr);
                  if (avail) {
                      for (String pkgName : pkgList) {
-                         invalidatePackage(pkgName);
+                         queuePackageEvent(pkgName, true);
                      }
                  }
              }
@@ -327,8 +529,16 @@ public class ApplicationsState {
                     }
                 } break;
                 case MSG_PACKAGE_SIZE_CHANGED: {
+                    ArrayList<String> packageNames;
+                    synchronized (mPendingSizeChanges) {
+                        if (mPendingSizeChanges.size() == 0) {
+                            break;
+                        }
+                        packageNames = new ArrayList<String>(mPendingSizeChanges);
+                        mPendingSizeChanges.clear();
+                    }
                     if (mCurCallbacks != null) {
-                        mCurCallbacks.onPackageSizeChanged((String)msg.obj);
+                        mCurCallbacks.onPackageSizeChanged(packageNames);
                     }
                 } break;
                 case MSG_ALL_SIZES_COMPUTED: {
@@ -364,6 +574,14 @@ public class ApplicationsState {
     private ApplicationsState(Application app) {
         mContext = app;
         mPm = mContext.getPackageManager();
+        mSnapshot = new AppEntrySnapshot(mContext.getCacheDir());
+        mSizeRequestWindow = Math.max(1, mContext.getResources().getInteger(
+                R.integer.config_app_size_request_window));
+        ActivityManager am = (ActivityManager)mContext.getSystemService(
+                Context.ACTIVITY_SERVICE);
+        mIconStore = new AppIconStore(
+                am.getMemoryClass() * 1024L * 1024L / ICON_BUDGET_DIVISOR);
+        app.registerComponentCallbacks(new MemoryCallbacks());
         mThread = new HandlerThread("ApplicationsState.Loader",
                 Process.THREAD_PRIORITY_BACKGROUND);
         mThread.start();
@@ -393,7 +611,9 @@ public class ApplicationsState {
 
     void resume(Callbacks callbacks) {
         if (DEBUG_LOCKING) Log.v(TAG, "resume about to acquire lock...");
+        long lockStart = AppLoadTimeline.start();
         synchronized (mEntriesMap) {
+            long locked = mTimeline.end(AppLoadTimeline.LOCK_WAIT, lockStart);
             mCurCallbacks = callbacks;
             mResumed = true;
             if (mPackageIntentReceiver == null) {
@@ -407,14 +627,23 @@ public class ApplicationsState {
                 mApplications = new ArrayList<ApplicationInfo>();
             }
 
+            // The new application list may differ in any way from what the
+            // sorted views were built from.
+            invalidateSortedViewsLocked();
+
             if (mInterestingConfigChanges.applyNewConfig(mContext.getResources())) {
                 // If an interesting part of the configuration has changed, we
                 // should completely reload the app entries.
                 mEntriesMap.clear();
                 mAppEntries.clear();
+                mEntriesVersion++;
+                mIconStore.clear();
+                updateCollator(mContext.getResources().getConfiguration().locale);
             } else {
                 for (int i=0; i<mAppEntries.size(); i++) {
-                    mAppEntries.get(i).sizeStale = true;
+                    AppEntry entry = mAppEntries.get(i);
+                    entry.sizeStale = true;
+                    entry.sizeLoadStart = 0;
                 }
             }
 
@@ -433,10 +662,21 @@ public class ApplicationsState {
                     entry.info = info;
                 }
             }
-            mCurComputingSizePkg = null;
+            publishEntriesLocked();
+            // The snapshot is read by the background thread before it
+            // creates entries.
+            mSnapshotLocale = mContext.getResources().getConfiguration().locale.toString();
+
+            mLoaderPool.reportNextVisibleDrain();
+            // Start a new size pass; answers to requests still outstanding
+            // are applied when they come in, but no longer waited for.
+            mSizeRequestsInFlight.clear();
+            mSizeQueue.clear();
+            mSizeQueuePos = 0;
             if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
                 mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ENTRIES);
             }
+            mTimeline.end(AppLoadTimeline.LOCK_HOLD, locked);
             if (DEBUG_LOCKING) Log.v(TAG, "...resume releasing lock");
         }
     }
@@ -453,6 +693,19 @@ public class ApplicationsState {
     // Creates a new list of app entries with the given filter and comparator.
     ArrayList<AppEntry> rebuild(AppFilter filter, Comparator<AppEntry> comparator) {
         synchronized (mRebuildSync) {
+            mRebuildGeneration++;
+            ArrayList<AppEntry> clean = getCleanRebuildResult(filter, comparator);
+            if (clean != null) {
+                // Nothing changed since this list was built; any rebuild
+                // still in progress is for something else and now moot.
+                mRebuildRequested = false;
+                mRebuildFilter = null;
+                mRebuildComparator = null;
+                mRebuildAsync = true;
+                mMainHandler.removeMessages(MainHandler.MSG_REBUILD_COMPLETE);
+                return clean;
+            }
+
             mRebuildRequested = true;
             mRebuildAsync = false;
             mRebuildFilter = filter;
@@ -482,14 +735,27 @@ public class ApplicationsState {
         }
     }
 
+    ArrayList<AppEntry> getCleanRebuildResult(AppFilter filter,
+            Comparator<AppEntry> comparator) {
+        SortedAppEntries[] views = mPublishedViews;
+        for (int i=0; i<views.length; i++) {
+            if (views[i].matches(filter, comparator)) {
+                return views[i].getCleanList();
+            }
+        }
+        return null;
+    }
+
     void handleRebuildList() {
         AppFilter filter;
         Comparator<AppEntry> comparator;
+        int rebuildGeneration;
         synchronized (mRebuildSync) {
             if (!mRebuildRequested) {
                 return;
             }
 
+            rebuildGeneration = mRebuildGeneration;
             filter = mRebuildFilter;
             comparator = mRebuildComparator;
             mRebuildRequested = false;
@@ -502,32 +768,64 @@ public class ApplicationsState {
         if (filter != null) {
             filter.init();
         }
-        
-        List<ApplicationInfo> apps;
+
+        ArrayList<AppEntry> filteredApps = null;
+        List<ApplicationInfo> apps = null;
+        SortedAppEntries view;
+        int generation = 0;
+        long lockStart = AppLoadTimeline.start();
         synchronized (mEntriesMap) {
-            apps = new ArrayList<ApplicationInfo>(mApplications);
+            long locked = mTimeline.end(AppLoadTimeline.LOCK_WAIT, lockStart);
+            view = getSortedViewLocked(filter, comparator);
+            if (view.isBuilt()) {
+                // Only apply what changed since the last rebuild.
+                if (DEBUG) Log.i(TAG, "Updating sorted list...");
+                filteredApps = view.update(this);
+                publishEntriesLocked();
+                mTimeline.end(AppLoadTimeline.REBUILD_UPDATE, locked);
+            } else {
+                generation = view.startBuild();
+                apps = new ArrayList<ApplicationInfo>(mApplications);
+            }
+            mTimeline.end(AppLoadTimeline.LOCK_HOLD, locked);
         }
 
-        ArrayList<AppEntry> filteredApps = new ArrayList<AppEntry>();
-        if (DEBUG) Log.i(TAG, "Rebuilding...");
-        for (int i=0; i<apps.size(); i++) {
-            ApplicationInfo info = apps.get(i);
-            if (filter == null || filter.filterApp(info)) {
-                synchronized (mEntriesMap) {
-                    if (DEBUG_LOCKING) Log.v(TAG, "rebuild acquired lock");
-                    AppEntry entry = getEntryLocked(info);
-                    entry.ensureLabel(mContext);
-                    if (DEBUG) Log.i(TAG, "Using " + info.packageName + ": " + entry);
-                    filteredApps.add(entry);
-                    if (DEBUG_LOCKING) Log.v(TAG, "rebuild releasing lock");
+        if (filteredApps == null) {
+            long phaseStart = AppLoadTimeline.start();
+            filteredApps = new ArrayList<AppEntry>();
+            if (DEBUG) Log.i(TAG, "Rebuilding...");
+            for (int i=0; i<apps.size(); i++) {
+                ApplicationInfo info = apps.get(i);
+                if (filter == null || filter.filterApp(info)) {
+                    lockStart = AppLoadTimeline.start();
+                    synchronized (mEntriesMap) {
+                        if (DEBUG_LOCKING) Log.v(TAG, "rebuild acquired lock");
+                        long locked = mTimeline.end(AppLoadTimeline.LOCK_WAIT, lockStart);
+                        AppEntry entry = getEntryLocked(info);
+                        entry.ensureLabel(mContext);
+                        if (DEBUG) Log.i(TAG, "Using " + info.packageName + ": " + entry);
+                        filteredApps.add(entry);
+                        mTimeline.end(AppLoadTimeline.LOCK_HOLD, locked);
+                        if (DEBUG_LOCKING) Log.v(TAG, "rebuild releasing lock");
+                    }
                 }
             }
-        }
+            phaseStart = mTimeline.end(AppLoadTimeline.REBUILD_FILTER, phaseStart);
 
-        Collections.sort(filteredApps, comparator);
+            Collections.sort(filteredApps, comparator);
+            mTimeline.end(AppLoadTimeline.REBUILD_SORT, phaseStart);
+
+            lockStart = AppLoadTimeline.start();
+            synchronized (mEntriesMap) {
+                long locked = mTimeline.end(AppLoadTimeline.LOCK_WAIT, lockStart);
+                view.setBuilt(generation, filteredApps);
+                publishEntriesLocked();
+                mTimeline.end(AppLoadTimeline.LOCK_HOLD, locked);
+            }
+        }
 
         synchronized (mRebuildSync) {
-            if (!mRebuildRequested) {
+            if (!mRebuildRequested && rebuildGeneration == mRebuildGeneration) {
                 if (!mRebuildAsync) {
                     mRebuildResult = filteredApps;
                     mRebuildSync.notifyAll();
@@ -544,10 +842,60 @@ public class ApplicationsState {
         Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
     }
 
+    SortedAppEntries getSortedViewLocked(AppFilter filter, Comparator<AppEntry> comparator) {
+        SortedAppEntries view = null;
+        for (int i=0; i<mSortedViews.size(); i++) {
+            if (mSortedViews.get(i).matches(filter, comparator)) {
+                view = mSortedViews.get(i);
+                break;
+            }
+        }
+        if (view == null) {
+            if (mSortedViews.size() >= MAX_SORTED_VIEWS) {
+                int oldest = 0;
+                for (int i=1; i<mSortedViews.size(); i++) {
+                    if (mSortedViews.get(i).mLastUsed < mSortedViews.get(oldest).mLastUsed) {
+                        oldest = i;
+                    }
+                }
+                mSortedViews.remove(oldest);
+            }
+            view = new SortedAppEntries(filter, comparator);
+            mSortedViews.add(view);
+            mPublishedViews = mSortedViews.toArray(new SortedAppEntries[mSortedViews.size()]);
+        }
+        view.mLastUsed = ++mSortedViewsClock;
+        return view;
+    }
+
+    void invalidateSortedViewsLocked() {
+        for (int i=0; i<mSortedViews.size(); i++) {
+            mSortedViews.get(i).invalidate();
+        }
+    }
+
+    /**
+     * Publishes the current entries for lock-free lookups, if they
+     * changed since last published.
+     */
+    void publishEntriesLocked() {
+        if (mPublishedEntries.get().version != mEntriesVersion) {
+            mPublishedEntries.set(new PublishedEntries(mEntriesVersion,
+                    new HashMap<String, AppEntry>(mEntriesMap)));
+        }
+    }
+
     AppEntry getEntry(String packageName) {
+        // Entries that are already loaded don't need the lock.
+        AppEntry entry = mPublishedEntries.get().entries.get(packageName);
+        if (entry != null) {
+            return entry;
+        }
         if (DEBUG_LOCKING) Log.v(TAG, "getEntry about to acquire lock...");
+        long lockStart = AppLoadTimeline.start();
         synchronized (mEntriesMap) {
-            AppEntry entry = mEntriesMap.get(packageName);
+            long locked = mTimeline.end(AppLoadTimeline.LOCK_WAIT, lockStart);
+            entry = mEntriesMap.get(packageName);
             if (entry == null) {
                 for (int i=0; i<mApplications.size(); i++) {
                     ApplicationInfo info = mApplications.get(i);
@@ -556,7 +904,9 @@ public class ApplicationsState {
                         break;
                     }
                 }
+                publishEntriesLocked();
             }
+            mTimeline.end(AppLoadTimeline.LOCK_HOLD, locked);
             if (DEBUG_LOCKING) Log.v(TAG, "...getEntry releasing lock");
             return entry;
         }
@@ -566,11 +916,77 @@ public class ApplicationsState {
         if (entry.icon != null) {
             return;
         }
+        Drawable loaded = null;
         synchronized (entry) {
-            entry.ensureIconLocked(mContext, mPm);
+            if (entry.ensureIconLocked(mContext, mPm)) {
+                loaded = entry.icon;
+            }
+        }
+        if (loaded != null) {
+            mIconStore.add(entry, loaded);
         }
     }
     
+    /**
+     * Asks for the entry's icon to be loaded ahead of everything else,
+     * because it is being shown.  The callbacks are told through
+     * onPackageIconChanged() once it is available.
+     */
+    void requestIcon(AppEntry entry) {
+        mLoaderPool.execute(entry, AppLoaderPool.PRIORITY_VISIBLE,
+                new IconLoader(entry, false));
+    }
+
+    /**
+     * Called when the entry is bound to a row on screen, so that its size
+     * is computed ahead of entries that aren't being shown and its icon is
+     * kept.  Must be balanced by noteHidden() once the row shows something
+     * else.  Only called from the main thread.
+     */
+    void noteVisible(AppEntry entry) {
+        entry.visibleTime = SystemClock.uptimeMillis();
+        entry.visibleCount++;
+        mIconStore.touch(entry);
+    }
+
+    void noteHidden(AppEntry entry) {
+        if (entry.visibleCount > 0) {
+            entry.visibleCount--;
+        }
+    }
+
+    /**
+     * Number of icons currently held by entries, for diagnostics.
+     */
+    int getResidentIconCount() {
+        return mIconStore.getIconCount();
+    }
+
+    /**
+     * Approximate number of bytes used by the icons currently held by
+     * entries, for diagnostics.
+     */
+    long getResidentIconBytes() {
+        return mIconStore.getIconBytes();
+    }
+
+    /**
+     * Prints how long loading has been taking, along with the state of
+     * the loaded entries.
+     */
+    void dump(String prefix, PrintWriter pw) {
+        synchronized (mEntriesMap) {
+            pw.print(prefix); pw.print("Applications: "); pw.print(mApplications.size());
+            pw.print(" entries: "); pw.print(mAppEntries.size());
+            pw.print(" size requests in flight: "); pw.println(mSizeRequestsInFlight.size());
+        }
+        pw.print(prefix); pw.print("Icons: "); pw.print(mIconStore.getIconCount());
+        pw.print(" ("); pw.print(mIconStore.getIconBytes() / 1024); pw.print("K of ");
+        pw.print(mIconStore.getBudget() / 1024); pw.println("K)");
+        pw.print(prefix); pw.println("Timings:");
+        mTimeline.dump(prefix + "  ", pw);
+    }
+
     void requestSize(String packageName) {
         if (DEBUG_LOCKING) Log.v(TAG, "requestSize about to acquire lock...");
         synchronized (mEntriesMap) {
@@ -604,63 +1020,155 @@ public class ApplicationsState {
         return -1;
     }
 
-    void addPackage(String pkgName) {
-        try {
-            synchronized (mEntriesMap) {
-                if (DEBUG_LOCKING) Log.v(TAG, "addPackage acquired lock");
-                if (DEBUG) Log.i(TAG, "Adding package " + pkgName);
-                if (!mResumed) {
-                    // If we are not resumed, we will do a full query the
-                    // next time we resume, so there is no reason to do work
-                    // here.
-                    if (DEBUG_LOCKING) Log.v(TAG, "addPackage release lock: not resumed");
-                    return;
-                }
-                if (indexOfApplicationInfoLocked(pkgName) >= 0) {
-                    if (DEBUG) Log.i(TAG, "Package already exists!");
-                    if (DEBUG_LOCKING) Log.v(TAG, "addPackage release lock: already exists");
-                    return;
-                }
-                ApplicationInfo info = mPm.getApplicationInfo(pkgName,
-                        PackageManager.GET_UNINSTALLED_PACKAGES |
-                        PackageManager.GET_DISABLED_COMPONENTS);
-                mApplications.add(info);
-                if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
-                    mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ENTRIES);
+    /**
+     * Records a package broadcast, to be applied together with whatever
+     * else arrives within PACKAGE_EVENT_BATCH_DELAY.  If reload is set,
+     * the package's entry is reloaded even if it is already known.
+     */
+    void queuePackageEvent(String pkgName, boolean reload) {
+        synchronized (mPendingPackageEvents) {
+            Boolean old = mPendingPackageEvents.get(pkgName);
+            mPendingPackageEvents.put(pkgName, reload || (old != null && old));
+        }
+        if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_APPLY_PACKAGE_EVENTS)) {
+            mBackgroundHandler.sendEmptyMessageDelayed(
+                    BackgroundHandler.MSG_APPLY_PACKAGE_EVENTS, PACKAGE_EVENT_BATCH_DELAY);
+        }
+    }
+
+    /**
+     * Looks up the current ApplicationInfo of the given packages; packages
+     * that no longer exist are left out.
+     */
+    HashMap<String, ApplicationInfo> resolvePackages(Set<String> pkgNames) {
+        final int flags = PackageManager.GET_UNINSTALLED_PACKAGES |
+                PackageManager.GET_DISABLED_COMPONENTS;
+        HashMap<String, ApplicationInfo> infos = new HashMap<String, ApplicationInfo>();
+        if (pkgNames.size() >= BULK_QUERY_THRESHOLD) {
+            // One query for everything is cheaper than a call per package.
+            List<ApplicationInfo> apps = mPm.getInstalledApplications(flags);
+            if (apps != null) {
+                for (int i=0; i<apps.size(); i++) {
+                    ApplicationInfo info = apps.get(i);
+                    if (pkgNames.contains(info.packageName)) {
+                        infos.put(info.packageName, info);
+                    }
                 }
-                if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_LIST_CHANGED)) {
-                    mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_LIST_CHANGED);
+            }
+        } else {
+            for (String pkgName : pkgNames) {
+                try {
+                    infos.put(pkgName, mPm.getApplicationInfo(pkgName, flags));
+                } catch (NameNotFoundException e) {
                 }
-                if (DEBUG_LOCKING) Log.v(TAG, "addPackage releasing lock");
             }
-        } catch (NameNotFoundException e) {
         }
+        return infos;
     }
 
-    void removePackage(String pkgName) {
+    /**
+     * Brings the given packages up to date with the package manager as one
+     * change to the application list: packages that are gone are removed,
+     * new ones are added and, for those marked to reload, the entry is
+     * replaced.  Listeners are told about the list changing once.
+     */
+    void applyPackageEvents(HashMap<String, Boolean> events) {
+        HashMap<String, ApplicationInfo> infos = resolvePackages(events.keySet());
+        long lockStart = AppLoadTimeline.start();
         synchronized (mEntriesMap) {
-            if (DEBUG_LOCKING) Log.v(TAG, "removePackage acquired lock");
-            int idx = indexOfApplicationInfoLocked(pkgName);
-            if (DEBUG) Log.i(TAG, "removePackage: " + pkgName + " @ " + idx);
-            if (idx >= 0) {
-                AppEntry entry = mEntriesMap.get(pkgName);
-                if (DEBUG) Log.i(TAG, "removePackage: " + entry);
-                if (entry != null) {
-                    mEntriesMap.remove(pkgName);
-                    mAppEntries.remove(entry);
+            if (DEBUG_LOCKING) Log.v(TAG, "applyPackageEvents acquired lock");
+            long locked = mTimeline.end(AppLoadTimeline.LOCK_WAIT, lockStart);
+            HashMap<String, Integer> indices = new HashMap<String, Integer>(mApplications.size());
+            for (int i=0; i<mApplications.size(); i++) {
+                indices.put(mApplications.get(i).packageName, i);
+            }
+            HashSet<AppEntry> removedEntries = new HashSet<AppEntry>();
+            boolean removed = false;
+            boolean added = false;
+            for (Map.Entry<String, Boolean> event : events.entrySet()) {
+                String pkgName = event.getKey();
+                boolean reload = event.getValue();
+                ApplicationInfo info = infos.get(pkgName);
+                Integer idx = indices.get(pkgName);
+                if (reload || info == null) {
+                    mSnapshot.invalidate(pkgName);
+                }
+                if (idx != null && (reload || info == null)) {
+                    if (DEBUG) Log.i(TAG, "Removing package " + pkgName + " @ " + idx);
+                    AppEntry entry = mEntriesMap.remove(pkgName);
+                    if (entry != null) {
+                        removedEntries.add(entry);
+                        mIconStore.remove(entry);
+                        for (int i=0; i<mSortedViews.size(); i++) {
+                            mSortedViews.get(i).noteRemoved(entry);
+                        }
+                    }
+                    // If we are not resumed, we will do a full query the
+                    // next time we resume, so there is no reason to add
+                    // it back here.
+                    if (info != null && mResumed) {
+                        mApplications.set(idx, info);
+                        added = true;
+                    } else {
+                        mApplications.set(idx, null);
+                        info = null;
+                    }
+                    removed = true;
+                } else if (idx == null && info != null && mResumed) {
+                    if (DEBUG) Log.i(TAG, "Adding package " + pkgName);
+                    mApplications.add(info);
+                    added = true;
+                } else {
+                    info = null;
                 }
-                mApplications.remove(idx);
+                if (info != null) {
+                    for (int i=0; i<mSortedViews.size(); i++) {
+                        mSortedViews.get(i).noteAdded(info);
+                    }
+                }
+            }
+
+            if (removed) {
+                int count = 0;
+                for (int i=0; i<mApplications.size(); i++) {
+                    ApplicationInfo info = mApplications.get(i);
+                    if (info != null) {
+                        mApplications.set(count++, info);
+                    }
+                }
+                mApplications.subList(count, mApplications.size()).clear();
+                if (removedEntries.size() > 0) {
+                    count = 0;
+                    for (int i=0; i<mAppEntries.size(); i++) {
+                        AppEntry entry = mAppEntries.get(i);
+                        if (!removedEntries.contains(entry)) {
+                            mAppEntries.set(count++, entry);
+                        }
+                    }
+                    mAppEntries.subList(count, mAppEntries.size()).clear();
+                    mEntriesVersion++;
+                    publishEntriesLocked();
+                }
+            }
+            if (added) {
+                if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
+                    mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ENTRIES);
+                }
+            }
+            if (removed || added) {
                 if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_LIST_CHANGED)) {
                     mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_LIST_CHANGED);
                 }
             }
-            if (DEBUG_LOCKING) Log.v(TAG, "removePackage releasing lock");
+            mTimeline.end(AppLoadTimeline.LOCK_HOLD, locked);
+            if (DEBUG_LOCKING) Log.v(TAG, "applyPackageEvents releasing lock");
         }
     }
 
     void invalidatePackage(String pkgName) {
-        removePackage(pkgName);
-        addPackage(pkgName);
+        HashMap<String, Boolean> events = new HashMap<String, Boolean>();
+        events.put(pkgName, true);
+        applyPackageEvents(events);
     }
     
     AppEntry getEntryLocked(ApplicationInfo info) {
@@ -669,8 +1177,10 @@ public class ApplicationsState {
         if (entry == null) {
             if (DEBUG) Log.i(TAG, "Creating AppEntry for " + info.packageName);
             entry = new AppEntry(mContext, info, mCurId++);
+            entry.initLabel(mContext, mSnapshot);
             mEntriesMap.put(info.packageName, entry);
             mAppEntries.add(entry);
+            mEntriesVersion++;
         } else if (entry.info != info) {
             entry.info = info;
         }
@@ -701,6 +1211,72 @@ public class ApplicationsState {
         return null;
     }
 
+    /**
+     * Loads an entry's icon on the loader pool, without holding the
+     * entries lock while the icon is decoded.
+     */
+    final class IconLoader implements Runnable {
+        final AppEntry mEntry;
+        // Loading ahead of need; skipped once the icon budget is used up.
+        final boolean mPrefetch;
+
+        IconLoader(AppEntry entry, boolean prefetch) {
+            mEntry = entry;
+            mPrefetch = prefetch;
+        }
+
+        @Override
+        public void run() {
+            synchronized (mEntry) {
+                if (!mEntry.needsIconLocked()) {
+                    return;
+                }
+            }
+            if (mPrefetch && mIconStore.isFull()) {
+                return;
+            }
+            long start = AppLoadTimeline.start();
+            Drawable icon = mEntry.loadIcon(mPm);
+            mTimeline.end(AppLoadTimeline.ICON_LOAD, start);
+            boolean changed;
+            synchronized (mEntry) {
+                changed = mEntry.applyIconLocked(mContext, icon);
+            }
+            if (changed) {
+                if (icon != null) {
+                    mIconStore.add(mEntry, icon);
+                }
+                if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_ICON_CHANGED)) {
+                    mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_ICON_CHANGED);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gives back icons of entries that aren't on screen when the system
+     * is short on memory.
+     */
+    final class MemoryCallbacks implements ComponentCallbacks2 {
+        @Override
+        public void onTrimMemory(int level) {
+            if (level >= TRIM_MEMORY_BACKGROUND) {
+                mIconStore.trimTo(0);
+            } else if (level >= TRIM_MEMORY_UI_HIDDEN) {
+                mIconStore.trimTo(mIconStore.getBudget() / 2);
+            }
+        }
+
+        @Override
+        public void onLowMemory() {
+            mIconStore.trimTo(0);
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+        }
+    }
+
     final HandlerThread mThread;
     final BackgroundHandler mBackgroundHandler;
     class BackgroundHandler extends Handler {
@@ -708,17 +1284,32 @@ public class ApplicationsState {
         static final int MSG_LOAD_ENTRIES = 2;
         static final int MSG_LOAD_ICONS = 3;
         static final int MSG_LOAD_SIZES = 4;
+        static final int MSG_APPLY_PACKAGE_EVENTS = 5;
+
+        // Number of entries whose labels are loaded in parallel per
+        // MSG_LOAD_ENTRIES, before giving a pending rebuild a chance to run.
+        static final int LOAD_ENTRIES_BATCH = 16;
 
         boolean mRunning;
 
+        // Start of the current entries and size passes, or 0.
+        long mEntriesPhaseStart;
+        long mSizesPhaseStart;
+
         final IPackageStatsObserver.Stub mStatsObserver = new IPackageStatsObserver.Stub() {
             public void onGetStatsCompleted(PackageStats stats, boolean succeeded) {
                 boolean sizeChanged = false;
+                long lockStart = AppLoadTimeline.start();
                 synchronized (mEntriesMap) {
                     if (DEBUG_LOCKING) Log.v(TAG, "onGetStatsCompleted acquired lock");
+                    long locked = mTimeline.end(AppLoadTimeline.LOCK_WAIT, lockStart);
                     AppEntry entry = mEntriesMap.get(stats.packageName);
                     if (entry != null) {
                         synchronized (entry) {
+                            if (entry.sizeLoadStart != 0) {
+                                mTimeline.record(AppLoadTimeline.SIZE_REQUEST,
+                                        (SystemClock.uptimeMillis() - entry.sizeLoadStart) * 1000);
+                            }
                             entry.sizeStale = false;
                             entry.sizeLoadStart = 0;
                             long externalCodeSize = stats.externalCodeSize
@@ -750,16 +1341,26 @@ public class ApplicationsState {
                             }
                         }
                         if (sizeChanged) {
-                            Message msg = mMainHandler.obtainMessage(
-                                    MainHandler.MSG_PACKAGE_SIZE_CHANGED, stats.packageName);
-                            mMainHandler.sendMessage(msg);
+                            mSnapshot.markDirty();
+                            for (int i=0; i<mSortedViews.size(); i++) {
+                                mSortedViews.get(i).noteSizeChanged(entry);
+                            }
+                            synchronized (mPendingSizeChanges) {
+                                if (!mPendingSizeChanges.contains(stats.packageName)) {
+                                    mPendingSizeChanges.add(stats.packageName);
+                                }
+                            }
+                            if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_SIZE_CHANGED)) {
+                                mMainHandler.sendEmptyMessageDelayed(
+                                        MainHandler.MSG_PACKAGE_SIZE_CHANGED,
+                                        SIZE_CHANGE_BATCH_DELAY);
+                            }
                         }
                     }
-                    if (mCurComputingSizePkg == null
-                            || mCurComputingSizePkg.equals(stats.packageName)) {
-                        mCurComputingSizePkg = null;
+                    if (mSizeRequestsInFlight.remove(stats.packageName)) {
                         sendEmptyMessage(MSG_LOAD_SIZES);
                     }
+                    mTimeline.end(AppLoadTimeline.LOCK_HOLD, locked);
                     if (DEBUG_LOCKING) Log.v(TAG, "onGetStatsCompleted releasing lock");
                 }
             }
@@ -769,6 +1370,58 @@ public class ApplicationsState {
             super(looper);
         }
 
+        // Never computed sizes come first, then stale ones; within each,
+        // entries shown most recently come first, then list order.
+        final Comparator<AppEntry> mSizeQueueComparator = new Comparator<AppEntry>() {
+            @Override
+            public int compare(AppEntry object1, AppEntry object2) {
+                boolean unknown1 = object1.size == SIZE_UNKNOWN;
+                boolean unknown2 = object2.size == SIZE_UNKNOWN;
+                if (unknown1 != unknown2) {
+                    return unknown1 ? -1 : 1;
+                }
+                if (object1.visibleTime != object2.visibleTime) {
+                    return object1.visibleTime > object2.visibleTime ? -1 : 1;
+                }
+                return 0;
+            }
+        };
+
+        boolean needsSizeLocked(AppEntry entry) {
+            return entry.size == SIZE_UNKNOWN || entry.sizeStale;
+        }
+
+        void buildSizeQueueLocked() {
+            mSizeQueue.clear();
+            mSizeQueuePos = 0;
+            for (int i=0; i<mAppEntries.size(); i++) {
+                AppEntry entry = mAppEntries.get(i);
+                if (needsSizeLocked(entry)) {
+                    mSizeQueue.add(entry);
+                }
+            }
+            Collections.sort(mSizeQueue, mSizeQueueComparator);
+        }
+
+        void expireSizeRequestsLocked(long now) {
+            if (mSizeRequestsInFlight.size() == 0) {
+                return;
+            }
+            ArrayList<String> expired = null;
+            for (String pkgName : mSizeRequestsInFlight) {
+                AppEntry entry = mEntriesMap.get(pkgName);
+                if (entry == null || entry.sizeLoadStart < (now-SIZE_REQUEST_TIMEOUT)) {
+                    if (expired == null) {
+                        expired = new ArrayList<String>();
+                    }
+                    expired.add(pkgName);
+                }
+            }
+            if (expired != null) {
+                mSizeRequestsInFlight.removeAll(expired);
+            }
+        }
+
         @Override
         public void handleMessage(Message msg) {
             // Always try rebuilding list first thing, if needed.
@@ -777,11 +1430,36 @@ public class ApplicationsState {
             switch (msg.what) {
                 case MSG_REBUILD_LIST: {
                 } break;
+                case MSG_APPLY_PACKAGE_EVENTS: {
+                    HashMap<String, Boolean> events;
+                    synchronized (mPendingPackageEvents) {
+                        if (mPendingPackageEvents.size() == 0) {
+                            break;
+                        }
+                        events = new LinkedHashMap<String, Boolean>(mPendingPackageEvents);
+                        mPendingPackageEvents.clear();
+                    }
+                    applyPackageEvents(events);
+                } break;
                 case MSG_LOAD_ENTRIES: {
-                    int numDone = 0;
+                    if (mEntriesPhaseStart == 0) {
+                        mEntriesPhaseStart = AppLoadTimeline.start();
+                    }
+                    // Pick up labels and sizes from the last process, so that
+                    // the entries can be created without loading each of them
+                    // again. The records are checked against the apks as
+                    // entries are created.
+                    final String locale = mSnapshotLocale;
+                    if (locale != null) {
+                        mSnapshot.loadIfNeeded(locale);
+                    }
+                    final ArrayList<AppEntry> newEntries = new ArrayList<AppEntry>();
+                    long lockStart = AppLoadTimeline.start();
                     synchronized (mEntriesMap) {
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ENTRIES acquired lock");
-                        for (int i=0; i<mApplications.size() && numDone<6; i++) {
+                        long locked = mTimeline.end(AppLoadTimeline.LOCK_WAIT, lockStart);
+                        for (int i=0; i<mApplications.size()
+                                && newEntries.size()<LOAD_ENTRIES_BATCH; i++) {
                             if (!mRunning) {
                                 mRunning = true;
                                 Message m = mMainHandler.obtainMessage(
@@ -790,80 +1468,134 @@ public class ApplicationsState {
                             }
                             ApplicationInfo info = mApplications.get(i);
                             if (mEntriesMap.get(info.packageName) == null) {
-                                numDone++;
-                                getEntryLocked(info);
+                                newEntries.add(new AppEntry(mContext, info, mCurId++));
                             }
                         }
+                        mTimeline.end(AppLoadTimeline.LOCK_HOLD, locked);
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ENTRIES releasing lock");
                     }
 
-                    if (numDone >= 6) {
+                    if (newEntries.size() > 0) {
+                        // Load the labels in parallel, without holding the lock.
+                        ArrayList<Runnable> loads = new ArrayList<Runnable>(newEntries.size());
+                        for (int i=0; i<newEntries.size(); i++) {
+                            final AppEntry entry = newEntries.get(i);
+                            loads.add(new Runnable() {
+                                public void run() {
+                                    long start = AppLoadTimeline.start();
+                                    entry.initLabel(mContext, mSnapshot);
+                                    mTimeline.end(AppLoadTimeline.LABEL_LOAD, start);
+                                }
+                            });
+                        }
+                        mLoaderPool.runAll(loads);
+
+                        lockStart = AppLoadTimeline.start();
+                        synchronized (mEntriesMap) {
+                            if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ENTRIES acquired lock");
+                            long locked = mTimeline.end(AppLoadTimeline.LOCK_WAIT, lockStart);
+                            for (int i=0; i<newEntries.size(); i++) {
+                                AppEntry entry = newEntries.get(i);
+                                String pkgName = entry.info.packageName;
+                                int idx = indexOfApplicationInfoLocked(pkgName);
+                                // The list may have been reloaded or the entry
+                                // created by someone else in the meantime.
+                                if (idx >= 0 && mApplications.get(idx) == entry.info
+                                        && mEntriesMap.get(pkgName) == null) {
+                                    mEntriesMap.put(pkgName, entry);
+                                    mAppEntries.add(entry);
+                                    mEntriesVersion++;
+                                }
+                            }
+                            publishEntriesLocked();
+                            mTimeline.end(AppLoadTimeline.LOCK_HOLD, locked);
+                            if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ENTRIES releasing lock");
+                        }
+                    }
+
+                    if (newEntries.size() >= LOAD_ENTRIES_BATCH) {
                         sendEmptyMessage(MSG_LOAD_ENTRIES);
                     } else {
+                        mTimeline.end(AppLoadTimeline.PHASE_ENTRIES, mEntriesPhaseStart);
+                        mEntriesPhaseStart = 0;
                         sendEmptyMessage(MSG_LOAD_ICONS);
                     }
                 } break;
                 case MSG_LOAD_ICONS: {
-                    int numDone = 0;
+                    // Icons are decoded on the loader pool, in list order
+                    // unless the UI asks for visible ones first.
+                    long lockStart = AppLoadTimeline.start();
                     synchronized (mEntriesMap) {
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ICONS acquired lock");
-                        for (int i=0; i<mAppEntries.size() && numDone<2; i++) {
+                        long locked = mTimeline.end(AppLoadTimeline.LOCK_WAIT, lockStart);
+                        for (int i=0; i<mAppEntries.size(); i++) {
                             AppEntry entry = mAppEntries.get(i);
                             if (entry.icon == null || !entry.mounted) {
-                                synchronized (entry) {
-                                    if (entry.ensureIconLocked(mContext, mPm)) {
-                                        if (!mRunning) {
-                                            mRunning = true;
-                                            Message m = mMainHandler.obtainMessage(
-                                                    MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
-                                            mMainHandler.sendMessage(m);
-                                        }
-                                        numDone++;
-                                    }
+                                if (!mRunning) {
+                                    mRunning = true;
+                                    Message m = mMainHandler.obtainMessage(
+                                            MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
+                                    mMainHandler.sendMessage(m);
                                 }
+                                mLoaderPool.execute(entry, AppLoaderPool.PRIORITY_BACKGROUND,
+                                        new IconLoader(entry, true));
                             }
                         }
+                        mTimeline.end(AppLoadTimeline.LOCK_HOLD, locked);
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ICONS releasing lock");
                     }
-                    if (numDone > 0) {
-                        if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_ICON_CHANGED)) {
-                            mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_ICON_CHANGED);
-                        }
-                    }
-                    if (numDone >= 2) {
-                        sendEmptyMessage(MSG_LOAD_ICONS);
-                    } else {
-                        sendEmptyMessage(MSG_LOAD_SIZES);
-                    }
+                    sendEmptyMessage(MSG_LOAD_SIZES);
                 } break;
                 case MSG_LOAD_SIZES: {
+                    ArrayList<AppEntrySnapshot.Record> snapshot = null;
+                    long lockStart = AppLoadTimeline.start();
                     synchronized (mEntriesMap) {
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES acquired lock");
-                        if (mCurComputingSizePkg != null) {
-                            if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: currently computing");
-                            return;
+                        long locked = mTimeline.end(AppLoadTimeline.LOCK_WAIT, lockStart);
+                        long now = SystemClock.uptimeMillis();
+                        expireSizeRequestsLocked(now);
+                        if (mSizeQueuePos >= mSizeQueue.size()
+                                && mSizeRequestsInFlight.size() == 0) {
+                            // Pick up whatever became stale or was added
+                            // since the last pass.
+                            buildSizeQueueLocked();
+                            if (mSizesPhaseStart == 0 && mSizeQueue.size() > 0) {
+                                mSizesPhaseStart = AppLoadTimeline.start();
+                            }
                         }
 
-                        long now = SystemClock.uptimeMillis();
-                        for (int i=0; i<mAppEntries.size(); i++) {
-                            AppEntry entry = mAppEntries.get(i);
-                            if (entry.size == SIZE_UNKNOWN || entry.sizeStale) {
-                                if (entry.sizeLoadStart == 0 ||
-                                        (entry.sizeLoadStart < (now-20*1000))) {
-                                    if (!mRunning) {
-                                        mRunning = true;
-                                        Message m = mMainHandler.obtainMessage(
-                                                MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
-                                        mMainHandler.sendMessage(m);
-                                    }
-                                    entry.sizeLoadStart = now;
-                                    mCurComputingSizePkg = entry.info.packageName;
-                                    mPm.getPackageSizeInfo(mCurComputingSizePkg, mStatsObserver);
-                                }
-                                if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: now computing");
-                                return;
+                        while (mSizeRequestsInFlight.size() < mSizeRequestWindow
+                                && mSizeQueuePos < mSizeQueue.size()) {
+                            AppEntry entry = mSizeQueue.get(mSizeQueuePos++);
+                            String pkgName = entry.info.packageName;
+                            if (mEntriesMap.get(pkgName) != entry || !needsSizeLocked(entry)
+                                    || mSizeRequestsInFlight.contains(pkgName)) {
+                                continue;
+                            }
+                            if (!mRunning) {
+                                mRunning = true;
+                                Message m = mMainHandler.obtainMessage(
+                                        MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
+                                mMainHandler.sendMessage(m);
                             }
+                            entry.sizeLoadStart = now;
+                            mSizeRequestsInFlight.add(pkgName);
+                            mPm.getPackageSizeInfo(pkgName, mStatsObserver);
                         }
+
+                        if (mSizeRequestsInFlight.size() > 0
+                                || mSizeQueuePos < mSizeQueue.size()) {
+                            // Come back even if none of the requests ever
+                            // answers, so they can expire.
+                            if (mSizeRequestsInFlight.size() > 0
+                                    && !hasMessages(MSG_LOAD_SIZES)) {
+                                sendEmptyMessageDelayed(MSG_LOAD_SIZES, SIZE_REQUEST_TIMEOUT);
+                            }
+                            mTimeline.end(AppLoadTimeline.LOCK_HOLD, locked);
+                            if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: now computing");
+                            return;
+                        }
+
                         if (!mMainHandler.hasMessages(MainHandler.MSG_ALL_SIZES_COMPUTED)) {
                             mMainHandler.sendEmptyMessage(MainHandler.MSG_ALL_SIZES_COMPUTED);
                             mRunning = false;
@@ -871,8 +1603,20 @@ public class ApplicationsState {
                                     MainHandler.MSG_RUNNING_STATE_CHANGED, 0);
                             mMainHandler.sendMessage(m);
                         }
+                        if (mSizesPhaseStart != 0) {
+                            mTimeline.end(AppLoadTimeline.PHASE_SIZES, mSizesPhaseStart);
+                            mSizesPhaseStart = 0;
+                        }
+                        if (mSnapshot.isDirty()) {
+                            snapshot = mSnapshot.captureLocked(mAppEntries);
+                        }
+                        mTimeline.end(AppLoadTimeline.LOCK_HOLD, locked);
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing lock");
                     }
+                    if (snapshot != null) {
+                        // Everything is loaded; save it for the next process.
+                        mSnapshot.write(snapshot);
+                    }
                 } break;
             }
         }
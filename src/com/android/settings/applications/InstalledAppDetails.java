@@ -427,8 +427,8 @@ public class InstalledAppDetails extends Fragment
     }
 
     @Override
-    public void onPackageSizeChanged(String packageName) {
-        if (packageName.equals(mAppEntry.info.packageName)) {
+    public void onPackageSizeChanged(ArrayList<String> packageNames) {
+        if (packageNames.contains(mAppEntry.info.packageName)) {
             refreshSizeInfo();
         }
     }
@@ -25,6 +25,7 @@ import android.content.Intent;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.IPackageManager;
 import android.content.pm.PackageInfo;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.RemoteException;
@@ -60,6 +61,8 @@ import com.android.settings.Settings.RunningServicesActivity;
 import com.android.settings.Settings.StorageUseActivity;
 import com.android.settings.applications.ApplicationsState.AppEntry;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Comparator;
 
@@ -208,6 +211,8 @@ public class ManageApplications extends Fragment implements
     // View Holder used when displaying views
     static class AppViewHolder {
         ApplicationsState.AppEntry entry;
+        // Entry this row was reported visible for; see releaseVisible().
+        ApplicationsState.AppEntry visibleEntry;
         TextView appName;
         ImageView appIcon;
         TextView appSize;
@@ -256,6 +261,11 @@ public class ManageApplications extends Fragment implements
         private int mWhichSize = SIZE_TOTAL;
         CharSequence mCurFilterPrefix;
 
+        // Word-start index over mBaseEntries, built in the background, and
+        // the last prefix query.  Both are also used from the filter thread.
+        private volatile AppLabelIndex mLabelIndex;
+        private volatile AppLabelIndex.Result mLastPrefixResult;
+
         private Filter mFilter = new Filter() {
             @Override
             protected FilterResults performFiltering(CharSequence constraint) {
@@ -296,10 +306,20 @@ public class ManageApplications extends Fragment implements
         public void pause() {
             if (mResumed) {
                 mResumed = false;
+                for (int i=0; i<mActive.size(); i++) {
+                    releaseVisible((AppViewHolder)mActive.get(i).getTag());
+                }
                 mState.pause();
             }
         }
 
+        void releaseVisible(AppViewHolder holder) {
+            if (holder.visibleEntry != null) {
+                mState.noteHidden(holder.visibleEntry);
+                holder.visibleEntry = null;
+            }
+        }
+
         public void rebuild(int filter, int sort) {
             if (filter == mLastFilterMode && sort == mLastSortMode) {
                 return;
@@ -359,6 +379,7 @@ public class ManageApplications extends Fragment implements
             }
             mBaseEntries = entries;
             if (mBaseEntries != null) {
+                buildLabelIndex(mBaseEntries);
                 mEntries = applyPrefixFilter(mCurFilterPrefix, mBaseEntries);
             } else {
                 mEntries = null;
@@ -382,20 +403,39 @@ public class ManageApplications extends Fragment implements
                 return origEntries;
             } else {
                 String prefixStr = ApplicationsState.normalize(prefix.toString());
-                final String spacePrefixStr = " " + prefixStr;
-                ArrayList<ApplicationsState.AppEntry> newEntries
-                        = new ArrayList<ApplicationsState.AppEntry>();
-                for (int i=0; i<origEntries.size(); i++) {
-                    ApplicationsState.AppEntry entry = origEntries.get(i);
-                    String nlabel = entry.getNormalizedLabel();
-                    if (nlabel.startsWith(prefixStr) || nlabel.indexOf(spacePrefixStr) != -1) {
-                        newEntries.add(entry);
-                    }
+                AppLabelIndex index = mLabelIndex;
+                AppLabelIndex.Result result;
+                if (index != null && index.mEntries == origEntries) {
+                    result = index.query(prefixStr, mLastPrefixResult);
+                } else {
+                    result = AppLabelIndex.queryLinear(origEntries, prefixStr,
+                            mLastPrefixResult);
                 }
-                return newEntries;
+                mLastPrefixResult = result;
+                return result.entries;
             }
         }
 
+        void buildLabelIndex(final ArrayList<ApplicationsState.AppEntry> entries) {
+            AppLabelIndex index = mLabelIndex;
+            if (index != null && index.mEntries == entries) {
+                return;
+            }
+            new AsyncTask<Void, Void, AppLabelIndex>() {
+                @Override
+                protected AppLabelIndex doInBackground(Void... params) {
+                    return AppLabelIndex.build(entries);
+                }
+
+                @Override
+                protected void onPostExecute(AppLabelIndex result) {
+                    if (mBaseEntries == entries) {
+                        mLabelIndex = result;
+                    }
+                }
+            }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        }
+
         @Override
         public void onRunningStateChanged(boolean running) {
             getActivity().setProgressBarIndeterminateVisibility(running);
@@ -403,6 +443,10 @@ public class ManageApplications extends Fragment implements
 
         @Override
         public void onRebuildComplete(ArrayList<AppEntry> apps) {
+            if (apps == mBaseEntries && !mWaitingForData) {
+                // The list is handed back unchanged when nothing moved.
+                return;
+            }
             if (mLoadingContainer.getVisibility() == View.VISIBLE) {
                 mLoadingContainer.startAnimation(AnimationUtils.loadAnimation(
                         getActivity(), android.R.anim.fade_out));
@@ -413,6 +457,7 @@ public class ManageApplications extends Fragment implements
             mLoadingContainer.setVisibility(View.GONE);
             mWaitingForData = false;
             mBaseEntries = apps;
+            buildLabelIndex(mBaseEntries);
             mEntries = applyPrefixFilter(mCurFilterPrefix, mBaseEntries);
             notifyDataSetChanged();
             updateStorageUsage();
@@ -425,15 +470,26 @@ public class ManageApplications extends Fragment implements
 
         @Override
         public void onPackageIconChanged() {
-            // We ensure icons are loaded when their item is displayed, so
-            // don't care about icons loaded in the background.
+            // Icons of displayed items are requested when they are bound;
+            // pick up any that have arrived since.
+            for (int i=0; i<mActive.size(); i++) {
+                AppViewHolder holder = (AppViewHolder)mActive.get(i).getTag();
+                synchronized (holder.entry) {
+                    if (holder.entry.icon != null
+                            && holder.appIcon.getDrawable() != holder.entry.icon) {
+                        holder.appIcon.setImageDrawable(holder.entry.icon);
+                    }
+                }
+            }
         }
 
         @Override
-        public void onPackageSizeChanged(String packageName) {
+        public void onPackageSizeChanged(ArrayList<String> packageNames) {
+            boolean changed = false;
+            boolean resort = false;
             for (int i=0; i<mActive.size(); i++) {
                 AppViewHolder holder = (AppViewHolder)mActive.get(i).getTag();
-                if (holder.entry.info.packageName.equals(packageName)) {
+                if (packageNames.contains(holder.entry.info.packageName)) {
                     synchronized (holder.entry) {
                         holder.updateSizeText(ManageApplications.this, mWhichSize);
                     }
@@ -443,12 +499,17 @@ public class ManageApplications extends Fragment implements
                         // user viewed, and are sorting by size...  they may
                         // have cleared data, so we immediately want to resort
                         // the list with the new size to reflect it to the user.
-                        rebuild(false);
+                        resort = true;
                     }
-                    updateStorageUsage();
-                    return;
+                    changed = true;
                 }
             }
+            if (resort) {
+                rebuild(false);
+            }
+            if (changed) {
+                updateStorageUsage();
+            }
         }
 
         @Override
@@ -502,6 +563,11 @@ public class ManageApplications extends Fragment implements
 
             // Bind the data efficiently with the holder
             ApplicationsState.AppEntry entry = mEntries.get(position);
+            if (holder.visibleEntry != entry) {
+                releaseVisible(holder);
+                mState.noteVisible(entry);
+                holder.visibleEntry = entry;
+            }
             synchronized (entry) {
                 holder.entry = entry;
                 if (entry.label != null) {
@@ -510,9 +576,13 @@ public class ManageApplications extends Fragment implements
                             entry.info.enabled ? android.R.color.primary_text_dark
                                     : android.R.color.secondary_text_dark));
                 }
-                mState.ensureIcon(entry);
                 if (entry.icon != null) {
                     holder.appIcon.setImageDrawable(entry.icon);
+                } else {
+                    // Don't decode on the UI thread; the icon is loaded ahead
+                    // of everything else and set in onPackageIconChanged().
+                    holder.appIcon.setImageDrawable(null);
+                    mState.requestIcon(entry);
                 }
                 holder.updateSizeText(ManageApplications.this, mWhichSize);
                 if (InstalledAppDetails.SUPPORT_DISABLE_APPS) {
@@ -541,6 +611,7 @@ public class ManageApplications extends Fragment implements
         @Override
         public void onMovedToScrapHeap(View view) {
             mActive.remove(view);
+            releaseVisible((AppViewHolder)view.getTag());
         }
     }
     
@@ -689,6 +760,19 @@ public class ManageApplications extends Fragment implements
         mTabHost.getTabWidget().setEnabled(false);
     }
 
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        if (mApplicationsState != null) {
+            writer.print(prefix); writer.println("ApplicationsState:");
+            mApplicationsState.dump(prefix + "  ", writer);
+        }
+        if (mRunningProcessesView != null && mRunningProcessesView.mState != null) {
+            writer.print(prefix); writer.println("RunningState:");
+            mRunningProcessesView.mState.dump(prefix + "  ", writer);
+        }
+    }
+
     @Override
     public void onActivityResult(int requestCode, int resultCode, Intent data) {
         if (requestCode == INSTALLED_APP_DETAILS && mCurrentPkgName != null) {
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.util.AttributeSet;
+import android.util.DisplayMetrics;
+import android.view.View;
+
+/**
+ * Small line chart of a process's recent memory use, taken from
+ * {@link ProcessMemoryHistory}.  The line is scaled to fill the view
+ * between the lowest and highest sample, so it shows the trend rather than
+ * absolute values.
+ */
+public class MemorySparklineView extends View {
+    static final int LINE_COLOR = 0xff0099cc;
+
+    final Paint mPaint = new Paint();
+    final Path mPath = new Path();
+
+    ProcessMemoryHistory mHistory;
+    int mUid;
+    String mProcessName;
+
+    long[] mTimes;
+    long[] mPss;
+    int mCount;
+
+    public MemorySparklineView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        mPaint.setStyle(Paint.Style.STROKE);
+        mPaint.setColor(LINE_COLOR);
+        mPaint.setAntiAlias(true);
+        mPaint.setStrokeWidth(getResources().getDisplayMetrics().densityDpi
+                >= DisplayMetrics.DENSITY_HIGH ? 2 : 1);
+    }
+
+    /**
+     * Sets the process to show; call {@link #refresh} to load its samples.
+     */
+    public void setProcess(ProcessMemoryHistory history, int uid, String processName) {
+        mHistory = history;
+        mUid = uid;
+        mProcessName = processName;
+        if (mTimes == null || mTimes.length < history.mCapacity) {
+            mTimes = new long[history.mCapacity];
+            mPss = new long[history.mCapacity];
+        }
+        mCount = 0;
+        refresh();
+    }
+
+    /**
+     * Reloads the samples, redrawing only if there are new ones.
+     */
+    public void refresh() {
+        if (mHistory == null) {
+            return;
+        }
+        long lastTime = mCount > 0 ? mTimes[mCount-1] : 0;
+        int lastCount = mCount;
+        mCount = mHistory.getSamples(mUid, mProcessName, mTimes, mPss);
+        if (mCount != lastCount || (mCount > 0 && mTimes[mCount-1] != lastTime)) {
+            setVisibility(mCount > 1 ? VISIBLE : GONE);
+            updatePath();
+            invalidate();
+        }
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        updatePath();
+    }
+
+    private void updatePath() {
+        mPath.reset();
+        final int N = mCount;
+        if (N < 2) {
+            return;
+        }
+        final float left = getPaddingLeft();
+        final float top = getPaddingTop();
+        final float width = getWidth() - getPaddingLeft() - getPaddingRight();
+        final float height = getHeight() - getPaddingTop() - getPaddingBottom();
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+
+        long minPss = mPss[0], maxPss = mPss[0];
+        for (int i=1; i<N; i++) {
+            if (mPss[i] < minPss) minPss = mPss[i];
+            if (mPss[i] > maxPss) maxPss = mPss[i];
+        }
+        final long startTime = mTimes[0];
+        final long timeSpan = Math.max(mTimes[N-1] - startTime, 1);
+        final long pssSpan = maxPss - minPss;
+
+        for (int i=0; i<N; i++) {
+            float x = left + width * (mTimes[i] - startTime) / timeSpan;
+            // A flat line sits in the middle.
+            float y = pssSpan > 0
+                    ? top + height - height * (mPss[i] - minPss) / pssSpan
+                    : top + height / 2;
+            if (i == 0) {
+                mPath.moveTo(x, y);
+            } else {
+                mPath.lineTo(x, y);
+            }
+        }
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        canvas.drawPath(mPath, mPaint);
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Recent memory use of processes, as sampled by {@link RunningState}.  Each
+ * tracked process keeps a fixed number of (time, pss) samples in a ring.
+ * At most a fixed number of processes are tracked; to make room, the least
+ * recently sampled process that is no longer running is dropped.  When all
+ * tracked processes are still running, new ones aren't tracked until one
+ * goes away.
+ *
+ * <p>Written from the RunningState background thread and read from the UI
+ * thread; all methods synchronize on this object.
+ */
+final class ProcessMemoryHistory {
+    static final String TAG = "ProcessMemoryHistory";
+    static final boolean DEBUG = false;
+
+    static final class Track {
+        final int mUid;
+        final String mProcessName;
+        final long[] mTimes;
+        final long[] mPss;
+        int mPid;
+        // Index of the oldest sample, and how many there are.
+        int mStart;
+        int mCount;
+        // Update sequence in which the process was last seen running.
+        int mAliveSeq;
+        // Time of the latest sample, for picking what to evict.
+        long mLastSampleTime;
+
+        Track(int uid, String processName, int capacity) {
+            mUid = uid;
+            mProcessName = processName;
+            mTimes = new long[capacity];
+            mPss = new long[capacity];
+        }
+
+        void add(long time, long pss) {
+            final int N = mTimes.length;
+            int index;
+            if (mCount < N) {
+                index = (mStart + mCount) % N;
+                mCount++;
+            } else {
+                index = mStart;
+                mStart = (mStart + 1) % N;
+            }
+            mTimes[index] = time;
+            mPss[index] = pss;
+        }
+
+        void clear() {
+            mStart = 0;
+            mCount = 0;
+        }
+    }
+
+    final int mCapacity;
+    final int mMaxTracked;
+
+    // Tracks by uid, then process name, so lookups on every tick don't
+    // allocate a key; also listed flat for eviction.
+    private final SparseArray<HashMap<String, Track>> mTracksByUid
+            = new SparseArray<HashMap<String, Track>>();
+    private final ArrayList<Track> mTracks = new ArrayList<Track>();
+    private int mSeq;
+    private int mNumUntracked;
+
+    ProcessMemoryHistory(int capacity, int maxTracked) {
+        mCapacity = capacity;
+        mMaxTracked = maxTracked;
+    }
+
+    private Track getTrackLocked(int uid, String processName) {
+        final HashMap<String, Track> byName = mTracksByUid.get(uid);
+        return byName != null ? byName.get(processName) : null;
+    }
+
+    /**
+     * Starts a new update; processes not passed to {@link #noteAlive} before
+     * the next call are considered dead and can be evicted.
+     */
+    synchronized void startUpdate() {
+        mSeq++;
+    }
+
+    synchronized void noteAlive(int uid, String processName) {
+        Track track = getTrackLocked(uid, processName);
+        if (track != null) {
+            track.mAliveSeq = mSeq;
+        }
+    }
+
+    /**
+     * Adds a sample for the process, starting to track it if needed.  A
+     * process that restarted with a new pid starts over.
+     */
+    synchronized void record(int uid, String processName, int pid, long time, long pss) {
+        Track track = getTrackLocked(uid, processName);
+        if (track == null) {
+            if (mTracks.size() >= mMaxTracked && !evictDeadLocked()) {
+                mNumUntracked++;
+                return;
+            }
+            track = new Track(uid, processName, mCapacity);
+            HashMap<String, Track> byName = mTracksByUid.get(uid);
+            if (byName == null) {
+                byName = new HashMap<String, Track>();
+                mTracksByUid.put(uid, byName);
+            }
+            byName.put(processName, track);
+            mTracks.add(track);
+        } else if (track.mPid != pid) {
+            track.clear();
+        }
+        track.mPid = pid;
+        track.mAliveSeq = mSeq;
+        track.mLastSampleTime = time;
+        track.add(time, pss);
+    }
+
+    /**
+     * Drops the least recently sampled process that is no longer running,
+     * if there is one.
+     */
+    private boolean evictDeadLocked() {
+        Track oldest = null;
+        for (int i=0; i<mTracks.size(); i++) {
+            Track track = mTracks.get(i);
+            if (track.mAliveSeq != mSeq
+                    && (oldest == null || track.mLastSampleTime < oldest.mLastSampleTime)) {
+                oldest = track;
+            }
+        }
+        if (oldest == null) {
+            return false;
+        }
+        if (DEBUG) Log.i(TAG, "Evicting " + oldest.mProcessName);
+        mTracks.remove(oldest);
+        final HashMap<String, Track> byName = mTracksByUid.get(oldest.mUid);
+        byName.remove(oldest.mProcessName);
+        if (byName.isEmpty()) {
+            mTracksByUid.remove(oldest.mUid);
+        }
+        return true;
+    }
+
+    /**
+     * Copies the samples of the process, oldest first, into the given
+     * arrays and returns how many there are.  The arrays must hold at least
+     * {@link #mCapacity} entries.
+     */
+    synchronized int getSamples(int uid, String processName, long[] outTimes, long[] outPss) {
+        Track track = getTrackLocked(uid, processName);
+        if (track == null) {
+            return 0;
+        }
+        final int N = track.mTimes.length;
+        for (int i=0; i<track.mCount; i++) {
+            int index = (track.mStart + i) % N;
+            outTimes[i] = track.mTimes[index];
+            outPss[i] = track.mPss[index];
+        }
+        return track.mCount;
+    }
+
+    synchronized void dump(String prefix, PrintWriter pw) {
+        pw.print(prefix); pw.print("Memory history: "); pw.print(mTracks.size());
+        pw.print(" of "); pw.print(mMaxTracked); pw.print(" processes tracked, ");
+        pw.print(mNumUntracked); pw.println(" samples dropped for lack of room");
+    }
+}
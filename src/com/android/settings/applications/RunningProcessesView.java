@@ -33,6 +33,7 @@ import android.util.AttributeSet;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.BaseAdapter;
 import android.widget.FrameLayout;
@@ -44,6 +45,7 @@ import android.widget.AbsListView.RecyclerListener;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 
 public class RunningProcessesView extends FrameLayout
         implements AdapterView.OnItemClickListener, RecyclerListener,
@@ -90,6 +92,8 @@ public class RunningProcessesView extends FrameLayout
         ViewHolder mHolder;
         long mFirstRunTime;
         boolean mSetBackground;
+        // The item's mChangedSeq when it was bound.
+        int mBoundSeq;
         
         void updateTime(Context context, StringBuilder builder) {
             TextView uptimeView = null;
@@ -101,9 +105,18 @@ public class RunningProcessesView extends FrameLayout
                 
             } else {
                 String size = mItem.mSizeStr != null ? mItem.mSizeStr : "";
-                if (!size.equals(mItem.mCurSizeStr)) {
+                if (!size.equals(mItem.mCurSizeStr) || mItem.mSizeStale != mItem.mCurSizeStale) {
                     mItem.mCurSizeStr = size;
-                    mHolder.size.setText(size);
+                    mItem.mCurSizeStale = mItem.mSizeStale;
+                    if (mItem.mSizeStale && size.length() > 0) {
+                        mHolder.size.setText(context.getString(
+                                R.string.running_process_size_stale, size));
+                    } else {
+                        mHolder.size.setText(size);
+                    }
+                }
+                if (mItem instanceof RunningState.MergedItem) {
+                    ((RunningState.MergedItem)mItem).mLastShownTime = SystemClock.uptimeMillis();
                 }
                 
                 if (mItem.mBackground) {
@@ -177,6 +190,7 @@ public class RunningProcessesView extends FrameLayout
                 ai.mItem = item;
                 ai.mHolder = this;
                 ai.mFirstRunTime = item.mActiveSince;
+                ai.mBoundSeq = item.mChangedSeq;
                 if (item.mBackground) {
                     description.setText(rootView.getContext().getText(R.string.cached));
                 } else {
@@ -215,6 +229,7 @@ public class RunningProcessesView extends FrameLayout
         void setShowBackground(boolean showBackground) {
             if (mShowBackground != showBackground) {
                 mShowBackground = showBackground;
+                mState.noteUserInteraction();
                 mState.setWatchingBackgroundItems(showBackground);
                 refreshItems();
                 notifyDataSetChanged();
@@ -226,16 +241,23 @@ public class RunningProcessesView extends FrameLayout
             return mShowBackground;
         }
 
-        void refreshItems() {
+        /**
+         * Picks up the current list of items.  Returns false if it is
+         * still the same list, in which case only the content of some of
+         * the items may have changed.
+         */
+        boolean refreshItems() {
             ArrayList<RunningState.MergedItem> newItems =
                 mShowBackground ? mState.getCurrentBackgroundItems()
                         : mState.getCurrentMergedItems();
-            if (mItems != newItems) {
-                mItems = newItems;
+            if (mItems == newItems && mItems != null) {
+                return false;
             }
+            mItems = newItems;
             if (mItems == null) {
                 mItems = new ArrayList<RunningState.MergedItem>();
             }
+            return true;
         }
         
         public boolean hasStableIds() {
@@ -303,8 +325,11 @@ public class RunningProcessesView extends FrameLayout
     void refreshUi(boolean dataChanged) {
         if (dataChanged) {
             ServiceListAdapter adapter = (ServiceListAdapter)(mListView.getAdapter());
-            adapter.refreshItems();
-            adapter.notifyDataSetChanged();
+            if (adapter.refreshItems()) {
+                adapter.notifyDataSetChanged();
+            } else {
+                rebindChangedItems();
+            }
         }
         
         if (mDataAvail != null) {
@@ -366,6 +391,7 @@ public class RunningProcessesView extends FrameLayout
         ListView l = (ListView)parent;
         RunningState.MergedItem mi = (RunningState.MergedItem)l.getAdapter().getItem(position);
         mCurSelected = mi;
+        mState.noteUserInteraction();
         startServiceDetailsActivity(mi);
     }
 
@@ -405,6 +431,19 @@ public class RunningProcessesView extends FrameLayout
         }
         mListView.setOnItemClickListener(this);
         mListView.setRecyclerListener(this);
+        mListView.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+                if (scrollState != SCROLL_STATE_IDLE) {
+                    mState.noteUserInteraction();
+                }
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem,
+                    int visibleItemCount, int totalItemCount) {
+            }
+        });
         mAdapter = new ServiceListAdapter(mState);
         mListView.setAdapter(mAdapter);
         mColorBar = (LinearColorBar)findViewById(R.id.color_bar);
@@ -447,6 +486,21 @@ public class RunningProcessesView extends FrameLayout
         return false;
     }
 
+    /**
+     * Binds again just the rows whose item changed since they were bound,
+     * for when the list itself is still the same.
+     */
+    void rebindChangedItems() {
+        synchronized (mState.mLock) {
+            for (Map.Entry<View, ActiveItem> e : mActiveItems.entrySet()) {
+                ActiveItem ai = e.getValue();
+                if (ai.mItem.mChangedSeq != ai.mBoundSeq) {
+                    e.setValue(ai.mHolder.bind(mState, ai.mItem, mBuilder));
+                }
+            }
+        }
+    }
+
     void updateTimes() {
         Iterator<ActiveItem> it = mActiveItems.values().iterator();
         while (it.hasNext()) {
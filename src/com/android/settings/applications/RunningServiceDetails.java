@@ -83,6 +83,7 @@ public class RunningServiceDetails extends Fragment
         RunningProcessesView.ViewHolder mViewHolder;
         PendingIntent mManageIntent;
         ComponentName mInstaller;
+        MemorySparklineView mMemoryHistory;
 
         void stopActiveService(boolean confirmed) {
             RunningState.ServiceItem si = mServiceItem;
@@ -298,6 +299,8 @@ public class RunningServiceDetails extends Fragment
         detail.mRootView = root;
         detail.mViewHolder = new RunningProcessesView.ViewHolder(root);
         detail.mActiveItem = detail.mViewHolder.bind(mState, pi, mBuilder);
+        detail.mMemoryHistory = (MemorySparklineView)root.findViewById(R.id.memory_history);
+        detail.mMemoryHistory.setProcess(mState.mMemoryHistory, pi.mUid, pi.mProcessName);
         
         TextView description = (TextView)root.findViewById(R.id.comp_description);
         if (isMain) {
@@ -547,7 +550,11 @@ public class RunningServiceDetails extends Fragment
             mSnippetActiveItem.updateTime(getActivity(), mBuilder);
         }
         for (int i=0; i<mActiveDetails.size(); i++) {
-            mActiveDetails.get(i).mActiveItem.updateTime(getActivity(), mBuilder);
+            ActiveDetail detail = mActiveDetails.get(i);
+            detail.mActiveItem.updateTime(getActivity(), mBuilder);
+            if (detail.mMemoryHistory != null) {
+                detail.mMemoryHistory.refresh();
+            }
         }
     }
 
@@ -33,11 +33,14 @@ import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.text.format.Formatter;
 import android.util.Log;
 import android.util.SparseArray;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -49,6 +52,9 @@ import java.util.List;
  * applications/processes/services.
  */
 public class RunningState {
+    static final String TAG = "RunningState";
+    static final boolean DEBUG = false;
+
     static Object sGlobalLock = new Object();
     static RunningState sInstance;
 
@@ -58,7 +64,26 @@ public class RunningState {
     static final int MSG_UPDATE_TIME = 4;
 
     static final long TIME_UPDATE_DELAY = 1000;
+    // Contents are polled every CONTENTS_UPDATE_DELAY while they are
+    // changing, backing off to MAX_CONTENTS_UPDATE_DELAY while they aren't;
+    // likewise for memory use.
     static final long CONTENTS_UPDATE_DELAY = 2000;
+    static final long MAX_CONTENTS_UPDATE_DELAY = 16000;
+    static final long PSS_UPDATE_DELAY = 2000;
+    static final long MAX_PSS_UPDATE_DELAY = 32000;
+
+    // Each memory collection samples the processes that are shown in the
+    // main list, in the foreground or on screen (within PSS_SHOWN_WINDOW),
+    // and only PSS_BACKGROUND_BUDGET of the other ones.  Sizes older than
+    // PSS_STALE_THRESHOLD are shown as such.
+    static final int PSS_BACKGROUND_BUDGET = 8;
+    static final long PSS_SHOWN_WINDOW = 3000;
+    static final long PSS_STALE_THRESHOLD = 60*1000;
+
+    // Memory samples kept per process for the history shown in details,
+    // and how many processes are tracked at most.
+    static final int MEMORY_HISTORY_SAMPLES = 64;
+    static final int MEMORY_HISTORY_PROCESSES = 48;
 
     static final int MAX_SERVICES = 100;
 
@@ -101,7 +126,7 @@ public class RunningState {
     final ArrayList<ProcessItem> mAllProcessItems = new ArrayList<ProcessItem>();
 
     static class AppProcessInfo {
-        final ActivityManager.RunningAppProcessInfo info;
+        ActivityManager.RunningAppProcessInfo info;
         boolean hasServices;
         boolean hasForegroundServices;
 
@@ -110,9 +135,24 @@ public class RunningState {
         }
     }
 
+    // Recycled AppProcessInfo objects for mTmpAppProcesses.
+    final ArrayList<AppProcessInfo> mTmpAppProcessPool = new ArrayList<AppProcessInfo>();
+
     // Temporary structure used when updating above information.
     final SparseArray<AppProcessInfo> mTmpAppProcesses = new SparseArray<AppProcessInfo>();
 
+    // Scratch state reused from one update to the next, so that an update
+    // in which nothing changed doesn't need to allocate.  The item lists
+    // are built here and only copied out to be published when they differ
+    // from what is currently published.
+    final ArrayList<ProcessItem> mTmpSortedProcesses = new ArrayList<ProcessItem>();
+    final ArrayList<BaseItem> mTmpItems = new ArrayList<BaseItem>();
+    final ArrayList<MergedItem> mTmpMergedItems = new ArrayList<MergedItem>();
+    int[] mTmpPids = new int[0];
+    int[] mTmpPssIndices = new int[0];
+    // Where the next sampling of background processes' memory starts.
+    int mPssRotation;
+
     int mSequence = 0;
     
     // ----- following protected by mLock -----
@@ -136,6 +176,14 @@ public class RunningState {
     int mNumServiceProcesses;
     long mServiceProcessMemory;
 
+    final RunningStateScheduler mScheduler = new RunningStateScheduler(
+            CONTENTS_UPDATE_DELAY, MAX_CONTENTS_UPDATE_DELAY,
+            PSS_UPDATE_DELAY, MAX_PSS_UPDATE_DELAY);
+
+    // Not protected by mLock; it has its own.
+    final ProcessMemoryHistory mMemoryHistory = new ProcessMemoryHistory(
+            MEMORY_HISTORY_SAMPLES, MEMORY_HISTORY_PROCESSES);
+
     // ----- BACKGROUND MONITORING THREAD -----
 
     final HandlerThread mBackgroundThread;
@@ -156,12 +204,21 @@ public class RunningState {
                             return;
                         }
                     }
+                    long start = SystemClock.uptimeMillis();
+                    boolean changed = update(mApplicationContext, mAm);
                     Message cmd = mHandler.obtainMessage(MSG_REFRESH_UI);
-                    cmd.arg1 = update(mApplicationContext, mAm) ? 1 : 0;
+                    cmd.arg1 = changed ? 1 : 0;
                     mHandler.sendMessage(cmd);
+                    long now = SystemClock.uptimeMillis();
+                    long delay;
+                    synchronized (mLock) {
+                        delay = mScheduler.onTick(now, now - start, changed);
+                    }
+                    if (DEBUG) Log.i(TAG, "Update took " + (now - start) + "ms, changed="
+                            + changed + ", next in " + delay + "ms");
                     removeMessages(MSG_UPDATE_CONTENTS);
                     msg = obtainMessage(MSG_UPDATE_CONTENTS);
-                    sendMessageDelayed(msg, CONTENTS_UPDATE_DELAY);
+                    sendMessageDelayed(msg, delay);
                     break;
             }
         }
@@ -220,11 +277,17 @@ public class RunningState {
         String mDescription;
         
         int mCurSeq;
+        // Sequence of the update in which what is shown for this item
+        // last changed, so views bound to it know they are out of date.
+        int mChangedSeq;
         
         long mActiveSince;
         long mSize;
         String mSizeStr;
         String mCurSizeStr;
+        // The size hasn't been sampled in a while.
+        boolean mSizeStale;
+        boolean mCurSizeStale;
         boolean mNeedDivider;
         boolean mBackground;
         
@@ -260,6 +323,9 @@ public class RunningState {
         
         int mRunningSeq;
         ActivityManager.RunningAppProcessInfo mRunningProcessInfo;
+
+        // When the size was last sampled.
+        long mSizeTime;
         
         MergedItem mMergedItem;
 
@@ -403,7 +469,13 @@ public class RunningState {
         }
         
         boolean updateSize(Context context, long pss, int curSeq) {
-            mSize = pss * 1024;
+            long size = pss * 1024;
+            // mSize also moves on ticks where the text isn't formatted, so
+            // it only matches mSizeStr when this tick formats it.
+            if (mCurSeq == curSeq && size == mSize && mSizeStr != null) {
+                return false;
+            }
+            mSize = size;
             if (mCurSeq == curSeq) {
                 String sizeStr = Formatter.formatShortFileSize(
                         context, mSize);
@@ -461,11 +533,20 @@ public class RunningState {
         
         private int mLastNumProcesses = -1, mLastNumServices = -1;
 
+        // When the item was last on screen; set by the UI.
+        volatile long mLastShownTime;
+
         MergedItem() {
             super(false);
         }
         
         boolean update(Context context, boolean background) {
+            boolean changed = false;
+            if (mPackageInfo != mProcess.mPackageInfo
+                    || mDisplayLabel != mProcess.mDisplayLabel
+                    || mBackground != background) {
+                changed = true;
+            }
             mPackageInfo = mProcess.mPackageInfo;
             mDisplayLabel = mProcess.mDisplayLabel;
             mLabel = mProcess.mLabel;
@@ -487,25 +568,38 @@ public class RunningState {
                     }
                     mDescription = context.getResources().getString(resid, numProcesses,
                             numServices);
+                    changed = true;
                 }
             }
             
-            mActiveSince = -1;
+            long activeSince = -1;
             for (int i=0; i<mServices.size(); i++) {
                 ServiceItem si = mServices.get(i);
-                if (si.mActiveSince >= 0 && mActiveSince < si.mActiveSince) {
-                    mActiveSince = si.mActiveSince;
+                if (si.mActiveSince >= 0 && activeSince < si.mActiveSince) {
+                    activeSince = si.mActiveSince;
                 }
             }
+            if (mActiveSince != activeSince) {
+                mActiveSince = activeSince;
+                changed = true;
+            }
             
-            return false;
+            return changed;
         }
         
         boolean updateSize(Context context) {
-            mSize = mProcess.mSize;
+            long size = mProcess.mSize;
+            boolean stale = mProcess.mSizeStale;
             for (int i=0; i<mOtherProcesses.size(); i++) {
-                mSize += mOtherProcesses.get(i).mSize;
+                size += mOtherProcesses.get(i).mSize;
+                stale |= mOtherProcesses.get(i).mSizeStale;
             }
+            mSizeStale = stale;
+            // mSize is only ever set together with mSizeStr here.
+            if (size == mSize && mSizeStr != null) {
+                return false;
+            }
+            mSize = size;
             
             String sizeStr = Formatter.formatShortFileSize(
                     context, mSize);
@@ -586,20 +680,47 @@ public class RunningState {
                 mBackgroundHandler.removeMessages(MSG_UPDATE_CONTENTS);
                 mBackgroundHandler.sendEmptyMessage(MSG_RESET_CONTENTS);
             }
-            if (!mBackgroundHandler.hasMessages(MSG_UPDATE_CONTENTS)) {
-                mBackgroundHandler.sendEmptyMessage(MSG_UPDATE_CONTENTS);
-            }
+            // Coming back may well mean the user is about to look at things
+            // changing; start polling at full rate again.
+            mScheduler.reset(SystemClock.uptimeMillis());
+            mBackgroundHandler.removeMessages(MSG_UPDATE_CONTENTS);
+            mBackgroundHandler.sendEmptyMessage(MSG_UPDATE_CONTENTS);
             mHandler.sendEmptyMessage(MSG_UPDATE_TIME);
         }
     }
 
     void updateNow() {
         synchronized (mLock) {
+            mScheduler.reset(SystemClock.uptimeMillis());
             mBackgroundHandler.removeMessages(MSG_UPDATE_CONTENTS);
             mBackgroundHandler.sendEmptyMessage(MSG_UPDATE_CONTENTS);
         }
     }
 
+    /**
+     * Called when the user does something with the displayed state, so
+     * that polling goes back to the fastest rate if it had backed off.
+     */
+    void noteUserInteraction() {
+        synchronized (mLock) {
+            long interval = mScheduler.mInterval;
+            long delay = mScheduler.reset(SystemClock.uptimeMillis());
+            if (mResumed && interval > CONTENTS_UPDATE_DELAY) {
+                mBackgroundHandler.removeMessages(MSG_UPDATE_CONTENTS);
+                mBackgroundHandler.sendEmptyMessageDelayed(MSG_UPDATE_CONTENTS, delay);
+            }
+        }
+    }
+
+    void dump(String prefix, PrintWriter pw) {
+        synchronized (mLock) {
+            pw.print(prefix); pw.print("Merged items: "); pw.print(mMergedItems.size());
+            pw.print(" background items: "); pw.println(mBackgroundItems.size());
+            mScheduler.dump(prefix, pw);
+        }
+        mMemoryHistory.dump(prefix, pw);
+    }
+
     boolean hasData() {
         synchronized (mLock) {
             return mHaveData;
@@ -687,10 +808,24 @@ public class RunningState {
         List<ActivityManager.RunningAppProcessInfo> processes
                 = am.getRunningAppProcesses();
         final int NP = processes != null ? processes.size() : 0;
+        for (int i=0; i<mTmpAppProcesses.size(); i++) {
+            AppProcessInfo ainfo = mTmpAppProcesses.valueAt(i);
+            ainfo.info = null;
+            mTmpAppProcessPool.add(ainfo);
+        }
         mTmpAppProcesses.clear();
         for (int i=0; i<NP; i++) {
             ActivityManager.RunningAppProcessInfo pi = processes.get(i);
-            mTmpAppProcesses.put(pi.pid, new AppProcessInfo(pi));
+            AppProcessInfo ainfo;
+            if (mTmpAppProcessPool.size() > 0) {
+                ainfo = mTmpAppProcessPool.remove(mTmpAppProcessPool.size()-1);
+                ainfo.info = pi;
+                ainfo.hasServices = false;
+                ainfo.hasForegroundServices = false;
+            } else {
+                ainfo = new AppProcessInfo(pi);
+            }
+            mTmpAppProcesses.put(pi.pid, ainfo);
         }
 
         // Initial iteration through running services to collect per-process
@@ -912,7 +1047,8 @@ public class RunningState {
 
         if (changed) {
             // First determine an order for the services.
-            ArrayList<ProcessItem> sortedProcesses = new ArrayList<ProcessItem>();
+            ArrayList<ProcessItem> sortedProcesses = mTmpSortedProcesses;
+            sortedProcesses.clear();
             for (int i=0; i<mServiceProcessesByName.size(); i++) {
                 for (ProcessItem pi : mServiceProcessesByName.valueAt(i).values()) {
                     pi.mIsSystem = false;
@@ -938,8 +1074,10 @@ public class RunningState {
             
             Collections.sort(sortedProcesses, mServiceProcessComparator);
             
-            ArrayList<BaseItem> newItems = new ArrayList<BaseItem>();
-            ArrayList<MergedItem> newMergedItems = new ArrayList<MergedItem>();
+            ArrayList<BaseItem> newItems = mTmpItems;
+            ArrayList<MergedItem> newMergedItems = mTmpMergedItems;
+            newItems.clear();
+            newMergedItems.clear();
             mProcessItems.clear();
             for (int i=0; i<sortedProcesses.size(); i++) {
                 ProcessItem pi = sortedProcesses.get(i);
@@ -956,7 +1094,7 @@ public class RunningState {
                 
                 // Now add the services running in it.
                 MergedItem mergedItem = null;
-                boolean haveAllMerged = false;
+                boolean haveAllMerged = true;
                 boolean needDivider = false;
                 for (ServiceItem si : pi.mServices.values()) {
                     si.mNeedDivider = needDivider;
@@ -972,7 +1110,8 @@ public class RunningState {
                     }
                 }
                 
-                if (!haveAllMerged || mergedItem == null
+                boolean itemChanged = false;
+                if (!haveAllMerged || mergedItem == null || mergedItem.mProcess != pi
                         || mergedItem.mServices.size() != pi.mServices.size()) {
                     // Whoops, we need to build a new MergedItem!
                     mergedItem = new MergedItem();
@@ -981,13 +1120,29 @@ public class RunningState {
                         si.mMergedItem = mergedItem;
                     }
                     mergedItem.mProcess = pi;
+                    itemChanged = true;
+                }
+                // The processes it depends on may have changed even when the
+                // services haven't.
+                int numOther = mProcessItems.size() - 1 - firstProc;
+                if (numOther < 0) {
+                    numOther = 0;
+                }
+                boolean sameOther = mergedItem.mOtherProcesses.size() == numOther;
+                for (int mpi=0; sameOther && mpi<numOther; mpi++) {
+                    sameOther = mergedItem.mOtherProcesses.get(mpi)
+                            == mProcessItems.get(firstProc+mpi);
+                }
+                if (!sameOther) {
                     mergedItem.mOtherProcesses.clear();
                     for (int mpi=firstProc; mpi<(mProcessItems.size()-1); mpi++) {
                         mergedItem.mOtherProcesses.add(mProcessItems.get(mpi));
                     }
                 }
                 
-                mergedItem.update(context, false);
+                if (mergedItem.update(context, false) || itemChanged) {
+                    mergedItem.mChangedSeq = mSequence;
+                }
                 newMergedItems.add(mergedItem);
             }
             
@@ -1001,15 +1156,28 @@ public class RunningState {
                         proc.mMergedItem = new MergedItem();
                         proc.mMergedItem.mProcess = proc;
                     }
-                    proc.mMergedItem.update(context, false);
+                    if (proc.mMergedItem.update(context, false)) {
+                        proc.mMergedItem.mChangedSeq = mSequence;
+                    }
                     newMergedItems.add(0, proc.mMergedItem);
                     mProcessItems.add(proc);
                 }
             }
             
-            synchronized (mLock) {
-                mItems = newItems;
-                mMergedItems = newMergedItems;
+            // Only publish new lists if the rows themselves changed; if just
+            // the content of some rows did, the UI finds them by their
+            // mChangedSeq and keeps the rest as they are.
+            boolean sameItems = newItems.equals(mItems);
+            boolean sameMergedItems = newMergedItems.equals(mMergedItems);
+            if (!sameItems || !sameMergedItems) {
+                synchronized (mLock) {
+                    if (!sameItems) {
+                        mItems = new ArrayList<BaseItem>(newItems);
+                    }
+                    if (!sameMergedItems) {
+                        mMergedItems = new ArrayList<MergedItem>(newMergedItems);
+                    }
+                }
             }
         }
         
@@ -1049,16 +1217,28 @@ public class RunningState {
         ArrayList<MergedItem> newBackgroundItems = null;
         try {
             final int numProc = mAllProcessItems.size();
-            int[] pids = new int[numProc];
+            long pssStart = SystemClock.uptimeMillis();
+            boolean collectPss;
+            synchronized (mLock) {
+                collectPss = mScheduler.shouldCollectPss(pssStart, changed);
+            }
+            boolean collected = false;
+            mMemoryHistory.startUpdate();
             for (int i=0; i<numProc; i++) {
-                pids[i] = mAllProcessItems.get(i).mPid;
+                ProcessItem proc = mAllProcessItems.get(i);
+                mMemoryHistory.noteAlive(proc.mUid, proc.mProcessName);
+            }
+            if (collectPss) {
+                // Memory use is the expensive part; between collections the
+                // last values are shown.
+                changed |= sampleProcessSizes(context, pssStart);
+                collected = true;
             }
-            long[] pss = ActivityManagerNative.getDefault()
-                    .getProcessPss(pids);
             int bgIndex = 0;
-            for (int i=0; i<pids.length; i++) {
+            for (int i=0; i<numProc; i++) {
                 ProcessItem proc = mAllProcessItems.get(i);
-                changed |= proc.updateSize(context, pss[i], mSequence);
+                proc.mSizeStale = proc.mSizeTime == 0
+                        || pssStart - proc.mSizeTime > PSS_STALE_THRESHOLD;
                 if (proc.mCurSeq == mSequence) {
                     serviceProcessMemory += proc.mSize;
                 } else if (proc.mRunningProcessInfo.importance >=
@@ -1083,7 +1263,9 @@ public class RunningState {
                             mergedItem = mBackgroundItems.get(bgIndex);
                         }
                     }
-                    mergedItem.update(context, true);
+                    if (mergedItem.update(context, true)) {
+                        mergedItem.mChangedSeq = mSequence;
+                    }
                     mergedItem.updateSize(context);
                     bgIndex++;
                 } else if (proc.mRunningProcessInfo.importance <=
@@ -1091,6 +1273,13 @@ public class RunningState {
                     foregroundProcessMemory += proc.mSize;
                 }
             }
+            if (collected) {
+                long now = SystemClock.uptimeMillis();
+                synchronized (mLock) {
+                    mScheduler.notePssCollected(now, now - pssStart, backgroundProcessMemory
+                            + foregroundProcessMemory + serviceProcessMemory);
+                }
+            }
         } catch (RemoteException e) {
         }
         
@@ -1130,6 +1319,76 @@ public class RunningState {
         return changed;
     }
     
+    /**
+     * Whether the process needs its memory use sampled on every
+     * collection: it is shown in the main list, is in the foreground, is
+     * currently on screen, or has never been sampled.
+     */
+    private boolean needsPssEveryTime(ProcessItem proc, long now) {
+        return proc.mCurSeq == mSequence || proc.mSizeTime == 0
+                || proc.mRunningProcessInfo == null
+                || proc.mRunningProcessInfo.importance
+                        < ActivityManager.RunningAppProcessInfo.IMPORTANCE_BACKGROUND
+                || (proc.mMergedItem != null
+                        && now - proc.mMergedItem.mLastShownTime < PSS_SHOWN_WINDOW);
+    }
+
+    /**
+     * Samples the memory use of the processes in mAllProcessItems: all of
+     * those that need it every time, plus up to PSS_BACKGROUND_BUDGET of
+     * the others, taking turns.  The rest keep their last value.
+     */
+    private boolean sampleProcessSizes(Context context, long now) throws RemoteException {
+        final int numProc = mAllProcessItems.size();
+        if (mTmpPssIndices.length < numProc) {
+            mTmpPssIndices = new int[numProc];
+        }
+        int[] indices = mTmpPssIndices;
+        int count = 0;
+        int numRotating = 0;
+        for (int i=0; i<numProc; i++) {
+            if (needsPssEveryTime(mAllProcessItems.get(i), now)) {
+                indices[count++] = i;
+            } else {
+                numRotating++;
+            }
+        }
+        if (numRotating > 0) {
+            // Continue where the last collection stopped.
+            int budget = Math.min(PSS_BACKGROUND_BUDGET, numRotating);
+            int start = mPssRotation % numProc;
+            for (int j=0; j<numProc && budget > 0; j++) {
+                int i = (start + j) % numProc;
+                if (!needsPssEveryTime(mAllProcessItems.get(i), now)) {
+                    indices[count++] = i;
+                    budget--;
+                    mPssRotation = i + 1;
+                }
+            }
+        }
+
+        // The buffer only grows; getProcessPss() takes no count, so slots
+        // past it are cleared and come back as 0 without touching a process.
+        if (mTmpPids.length < count) {
+            mTmpPids = new int[Math.max(count, mTmpPids.length * 2)];
+        }
+        int[] pids = mTmpPids;
+        for (int j=0; j<count; j++) {
+            pids[j] = mAllProcessItems.get(indices[j]).mPid;
+        }
+        Arrays.fill(pids, count, pids.length, 0);
+        long[] pss = ActivityManagerNative.getDefault().getProcessPss(pids);
+        boolean changed = false;
+        for (int j=0; j<count; j++) {
+            ProcessItem proc = mAllProcessItems.get(indices[j]);
+            changed |= proc.updateSize(context, pss[j], mSequence);
+            proc.mSizeTime = now;
+            mMemoryHistory.record(proc.mUid, proc.mProcessName, proc.mPid, now, pss[j]);
+        }
+        if (DEBUG) Log.i(TAG, "Sampled " + count + " of " + numProc + " processes");
+        return changed;
+    }
+
     ArrayList<BaseItem> getCurrentItems() {
         synchronized (mLock) {
             return mItems;
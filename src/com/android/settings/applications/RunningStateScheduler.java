@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import java.io.PrintWriter;
+
+/**
+ * Decides how often {@link RunningState} polls the activity manager.  The
+ * list of processes and services is cheap to get and is polled at an
+ * interval that doubles each time nothing changed, up to a limit.  Memory
+ * use is expensive to get and has its own interval, which backs off the
+ * same way while the totals stay about the same.  Any change, or the user
+ * doing something, brings both back to the fastest rate.
+ *
+ * <p>All methods are called with the RunningState lock held.
+ */
+final class RunningStateScheduler {
+    final long mMinInterval;
+    final long mMaxInterval;
+    final long mMinPssInterval;
+    final long mMaxPssInterval;
+
+    // Memory totals moving by less than 1/PSS_STABLE_DIVISOR are treated
+    // as unchanged.
+    static final int PSS_STABLE_DIVISOR = 32;
+
+    long mInterval;
+    long mPssInterval;
+    long mLastPssTime;
+    long mLastPssTotal;
+    boolean mPssRequested;
+
+    // Exposed for tuning.
+    long mLastTickTime;
+    long mLastTickCost;
+    long mLastPssCost;
+    int mTicks;
+    int mPssTicks;
+
+    RunningStateScheduler(long minInterval, long maxInterval,
+            long minPssInterval, long maxPssInterval) {
+        mMinInterval = minInterval;
+        mMaxInterval = maxInterval;
+        mMinPssInterval = minPssInterval;
+        mMaxPssInterval = maxPssInterval;
+        mInterval = minInterval;
+        mPssInterval = minPssInterval;
+        mPssRequested = true;
+    }
+
+    /**
+     * Goes back to the fastest rate, with memory use collected on the next
+     * tick.  Returns the delay until that tick should happen.
+     */
+    long reset(long now) {
+        mInterval = mMinInterval;
+        mPssInterval = mMinPssInterval;
+        mPssRequested = true;
+        return Math.max(0, mLastTickTime + mMinInterval - now);
+    }
+
+    /**
+     * Whether memory use should be collected in this tick.
+     */
+    boolean shouldCollectPss(long now, boolean structureChanged) {
+        return mPssRequested || structureChanged || now - mLastPssTime >= mPssInterval;
+    }
+
+    void notePssCollected(long now, long cost, long total) {
+        long delta = Math.abs(total - mLastPssTotal);
+        if (delta > mLastPssTotal / PSS_STABLE_DIVISOR) {
+            mPssInterval = mMinPssInterval;
+        } else {
+            mPssInterval = Math.min(mPssInterval * 2, mMaxPssInterval);
+        }
+        mPssRequested = false;
+        mLastPssTime = now;
+        mLastPssTotal = total;
+        mLastPssCost = cost;
+        mPssTicks++;
+    }
+
+    /**
+     * Called at the end of each tick.  Returns the delay until the next.
+     */
+    long onTick(long now, long cost, boolean changed) {
+        if (changed) {
+            mInterval = mMinInterval;
+        } else {
+            mInterval = Math.min(mInterval * 2, mMaxInterval);
+        }
+        mLastTickTime = now;
+        mLastTickCost = cost;
+        mTicks++;
+        return mInterval;
+    }
+
+    void dump(String prefix, PrintWriter pw) {
+        pw.print(prefix); pw.print("Interval: "); pw.print(mInterval);
+        pw.print("ms, memory interval: "); pw.print(mPssInterval); pw.println("ms");
+        pw.print(prefix); pw.print("Ticks: "); pw.print(mTicks);
+        pw.print(" (last "); pw.print(mLastTickCost); pw.print("ms), with memory: ");
+        pw.print(mPssTicks); pw.print(" (last "); pw.print(mLastPssCost); pw.println("ms)");
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.pm.ApplicationInfo;
+
+import com.android.settings.applications.ApplicationsState.AppEntry;
+import com.android.settings.applications.ApplicationsState.AppFilter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+
+/**
+ * The filtered and sorted entries for one (filter, comparator) pair.  Once
+ * it has been built, package additions, removals and size changes are
+ * recorded against it and applied by moving just the affected entries, so
+ * a rebuild doesn't have to filter and sort everything again.
+ *
+ * <p>Must be used with the {@link ApplicationsState} entries lock held,
+ * except for {@link #getCleanList}.
+ */
+final class SortedAppEntries {
+    // Beyond this fraction of moved entries, re-sorting the (still mostly
+    // ordered) list is cheaper than moving entries one by one.
+    static final int MAX_MOVES_DIVISOR = 8;
+
+    final AppFilter mFilter;
+    final Comparator<AppEntry> mComparator;
+    final boolean mSizeSensitive;
+
+    // Our own copy, updated in place; null until built.
+    ArrayList<AppEntry> mEntries;
+    // What was last handed out; never modified once published.
+    ArrayList<AppEntry> mPublished;
+    // mPublished while no changes are pending against it, otherwise null.
+    // Read without the lock.
+    volatile ArrayList<AppEntry> mClean;
+    int mGeneration;
+    boolean mBuilding;
+    long mLastUsed;
+
+    final ArrayList<ApplicationInfo> mAdded = new ArrayList<ApplicationInfo>();
+    final ArrayList<AppEntry> mRemoved = new ArrayList<AppEntry>();
+    final LinkedHashSet<AppEntry> mMoved = new LinkedHashSet<AppEntry>();
+
+    SortedAppEntries(AppFilter filter, Comparator<AppEntry> comparator) {
+        mFilter = filter;
+        mComparator = comparator;
+        mSizeSensitive = comparator != ApplicationsState.ALPHA_COMPARATOR;
+    }
+
+    boolean matches(AppFilter filter, Comparator<AppEntry> comparator) {
+        return mFilter == filter && mComparator == comparator;
+    }
+
+    boolean isBuilt() {
+        return mEntries != null;
+    }
+
+    /**
+     * Starts recording changes for a full build that is about to be done
+     * from the current application list.  Returns the generation to hand
+     * to {@link #setBuilt}.
+     */
+    int startBuild() {
+        clearPending();
+        mEntries = null;
+        mPublished = null;
+        mClean = null;
+        mBuilding = true;
+        return mGeneration;
+    }
+
+    void setBuilt(int generation, ArrayList<AppEntry> sorted) {
+        if (generation != mGeneration || !mBuilding) {
+            // Invalidated while we were building.
+            return;
+        }
+        mBuilding = false;
+        mEntries = new ArrayList<AppEntry>(sorted);
+        mPublished = sorted;
+        mClean = sorted;
+    }
+
+    void invalidate() {
+        mGeneration++;
+        mBuilding = false;
+        mEntries = null;
+        mPublished = null;
+        mClean = null;
+        clearPending();
+    }
+
+    /**
+     * Returns the last published list if nothing has changed since, so it
+     * can be handed out again as is.  May be called without the lock.
+     */
+    ArrayList<AppEntry> getCleanList() {
+        return mClean;
+    }
+
+    void noteAdded(ApplicationInfo info) {
+        if (mEntries != null || mBuilding) {
+            mAdded.add(info);
+            mClean = null;
+        }
+    }
+
+    void noteRemoved(AppEntry entry) {
+        if (mEntries != null || mBuilding) {
+            mRemoved.add(entry);
+            mClean = null;
+        }
+    }
+
+    void noteSizeChanged(AppEntry entry) {
+        if (mSizeSensitive && (mEntries != null || mBuilding)) {
+            mMoved.add(entry);
+            mClean = null;
+        }
+    }
+
+    /**
+     * Applies the changes recorded since the last update.  Returns the
+     * previously published list if nothing moved, otherwise a new copy.
+     */
+    ArrayList<AppEntry> update(ApplicationsState state) {
+        boolean changed = false;
+
+        for (int i=0; i<mRemoved.size(); i++) {
+            if (mEntries.remove(mRemoved.get(i))) {
+                changed = true;
+            }
+        }
+
+        if (mMoved.size() > 0) {
+            if (mMoved.size() > mEntries.size() / MAX_MOVES_DIVISOR) {
+                Collections.sort(mEntries, mComparator);
+                changed = true;
+            } else {
+                // Take all moved entries out before putting any back, so
+                // each binary search runs over a list that is sorted.
+                final ArrayList<AppEntry> moved = new ArrayList<AppEntry>(mMoved.size());
+                final int[] oldIdx = new int[mMoved.size()];
+                for (AppEntry entry : mMoved) {
+                    int idx = mEntries.indexOf(entry);
+                    if (idx >= 0) {
+                        oldIdx[moved.size()] = idx;
+                        moved.add(entry);
+                    }
+                }
+                mEntries.removeAll(mMoved);
+                for (int i=0; i<moved.size(); i++) {
+                    insert(moved.get(i));
+                }
+                // The others kept their order, so the list is unchanged if
+                // every moved entry is back where it was.
+                for (int i=0; i<moved.size() && !changed; i++) {
+                    if (mEntries.get(oldIdx[i]) != moved.get(i)) {
+                        changed = true;
+                    }
+                }
+            }
+        }
+
+        for (int i=0; i<mAdded.size(); i++) {
+            ApplicationInfo info = mAdded.get(i);
+            if (mFilter != null && !mFilter.filterApp(info)) {
+                continue;
+            }
+            AppEntry entry = state.getEntryLocked(info);
+            entry.ensureLabel(state.mContext);
+            if (!mEntries.contains(entry)) {
+                insert(entry);
+                changed = true;
+            }
+        }
+
+        clearPending();
+        if (changed || mPublished == null) {
+            mPublished = new ArrayList<AppEntry>(mEntries);
+        }
+        mClean = mPublished;
+        return mPublished;
+    }
+
+    private void insert(AppEntry entry) {
+        int idx = Collections.binarySearch(mEntries, entry, mComparator);
+        if (idx < 0) {
+            idx = -idx - 1;
+        }
+        mEntries.add(idx, entry);
+    }
+
+    private void clearPending() {
+        mAdded.clear();
+        mRemoved.clear();
+        mMoved.clear();
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.deviceinfo;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import libcore.io.ErrnoException;
+import libcore.io.Libcore;
+import libcore.io.OsConstants;
+import libcore.io.StructStat;
+
+/**
+ * On-disk tree of directory sizes under one volume, so that measuring it
+ * again only lists directories that changed since the last walk.
+ *
+ * <p>Each directory is recorded with its mtime, the total size of the files
+ * directly in it and the names of its subdirectories. A directory's mtime
+ * only moves when entries are added, removed or renamed in it, so when it
+ * matches the recorded one the directory isn't listed again; its
+ * subdirectories are still checked the same way. Files that grow or are
+ * rewritten in place don't touch the mtime of their directory, so directories
+ * are also listed again once their record is older than {@link #MAX_AGE}, or
+ * after {@link #clear()}.
+ *
+ * <p>Entries are stat'ed once each without following links; symbolic links
+ * aren't counted or followed, like the container service walk.
+ *
+ * <p>Top level directories are walked concurrently, so records are kept in a
+ * concurrent map and never modified once created.
+ */
+final class DirectorySizeCache {
+    static final String TAG = "DirectorySizeCache";
+    static final boolean DEBUG = false;
+
+    private static final String FILE_PREFIX = "dir_sizes_";
+
+    private static final int MAGIC = 0x44697253;
+    private static final int VERSION = 2;
+
+    // Longest a directory listing is trusted, to bound how stale sizes of
+    // files growing in place can get.
+    private static final long MAX_AGE = 24 * 60 * 60 * 1000;
+
+    // FAT only keeps mtimes to two seconds, so a directory changed right
+    // around the time it was listed could change again without its mtime
+    // moving. Such directories are recorded as always stale.
+    private static final long MTIME_SLACK = 3000;
+
+    private static final String[] EMPTY = new String[0];
+
+    static final class Node {
+        final long mtime;
+        final long listedTime;
+        final long fileSize;
+        final String[] children;
+
+        Node(long mtime, long listedTime, long fileSize, String[] children) {
+            this.mtime = mtime;
+            this.listedTime = listedTime;
+            this.fileSize = fileSize;
+            this.children = children;
+        }
+    }
+
+    private final File mFile;
+    private final String mVolumePath;
+    private final ConcurrentHashMap<String, Node> mNodes = new ConcurrentHashMap<String, Node>();
+    private boolean mLoaded;
+    private volatile boolean mDirty;
+
+    DirectorySizeCache(File dir, String volumePath) {
+        mFile = new File(dir, FILE_PREFIX + Integer.toHexString(volumePath.hashCode()));
+        mVolumePath = volumePath;
+    }
+
+    /**
+     * Returns the size of all files under the given directory, listing only
+     * directories that changed since they were last recorded.
+     */
+    long getDirectorySize(String path) {
+        loadIfNeeded();
+        return measure(new File(path), path);
+    }
+
+    private long measure(File dir, String path) {
+        final StructStat stat = lstat(path);
+        if (stat == null || !OsConstants.S_ISDIR(stat.st_mode)) {
+            // Gone, not readable, or a link.
+            removeSubtree(path);
+            return 0;
+        }
+        final long mtime = stat.st_mtime * 1000;
+
+        Node node = mNodes.get(path);
+        final long now = System.currentTimeMillis();
+        if (node == null || node.mtime != mtime || now - node.listedTime > MAX_AGE
+                || now < node.listedTime) {
+            node = scan(dir, path, mtime, now, node);
+        }
+
+        long size = node.fileSize;
+        for (String child : node.children) {
+            size += measure(new File(dir, child), path + File.separator + child);
+        }
+        return size;
+    }
+
+    private Node scan(File dir, String path, long mtime, long now, Node old) {
+        if (DEBUG) Log.i(TAG, "Listing " + path);
+        final String[] names = dir.list();
+        long fileSize = 0;
+        final ArrayList<String> children = new ArrayList<String>();
+        if (names != null) {
+            for (String name : names) {
+                final StructStat stat = lstat(path + File.separator + name);
+                if (stat == null) {
+                    continue;
+                } else if (OsConstants.S_ISREG(stat.st_mode)) {
+                    fileSize += stat.st_size;
+                } else if (OsConstants.S_ISDIR(stat.st_mode)) {
+                    children.add(name);
+                }
+            }
+        }
+
+        if (old != null && old.children.length > 0) {
+            final HashSet<String> present = new HashSet<String>(children);
+            for (String child : old.children) {
+                if (!present.contains(child)) {
+                    removeSubtree(path + File.separator + child);
+                }
+            }
+        }
+
+        final boolean settled = now - mtime > MTIME_SLACK;
+        final Node node = new Node(settled ? mtime : -1, now, fileSize,
+                children.isEmpty() ? EMPTY : children.toArray(new String[children.size()]));
+        mNodes.put(path, node);
+        mDirty = true;
+        return node;
+    }
+
+    private static StructStat lstat(String path) {
+        try {
+            return Libcore.os.lstat(path);
+        } catch (ErrnoException e) {
+            return null;
+        }
+    }
+
+    private void removeSubtree(String path) {
+        if (mNodes.remove(path) == null) {
+            return;
+        }
+        final String prefix = path + File.separator;
+        final Iterator<String> it = mNodes.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().startsWith(prefix)) {
+                it.remove();
+            }
+        }
+        mDirty = true;
+    }
+
+    /**
+     * Forgets everything recorded, so the next measurement lists every
+     * directory again.
+     */
+    synchronized void clear() {
+        mLoaded = true;
+        mNodes.clear();
+        mDirty = false;
+        mFile.delete();
+    }
+
+    private synchronized void loadIfNeeded() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION
+                    || !mVolumePath.equals(in.readUTF())) {
+                Log.w(TAG, "Ignoring directory sizes with unknown format");
+                return;
+            }
+            final int N = in.readInt();
+            for (int i=0; i<N; i++) {
+                final String path = in.readUTF();
+                final long mtime = in.readLong();
+                final long listedTime = in.readLong();
+                final long fileSize = in.readLong();
+                final int childCount = in.readInt();
+                final String[] children = childCount == 0 ? EMPTY : new String[childCount];
+                for (int j=0; j<childCount; j++) {
+                    children[j] = in.readUTF();
+                }
+                mNodes.put(path, new Node(mtime, listedTime, fileSize, children));
+            }
+            if (DEBUG) Log.i(TAG, "Loaded " + N + " directories");
+        } catch (FileNotFoundException e) {
+            // Never measured yet.
+        } catch (IOException e) {
+            Log.w(TAG, "Failed reading directory sizes", e);
+            mNodes.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the recorded directories if anything changed since they were
+     * read. The file is replaced atomically so a crash mid-write leaves the
+     * old one in place.
+     */
+    synchronized void writeIfDirty() {
+        if (!mDirty) {
+            return;
+        }
+        mDirty = false;
+
+        final ArrayList<Map.Entry<String, Node>> entries =
+                new ArrayList<Map.Entry<String, Node>>(mNodes.entrySet());
+        File tmp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        boolean ok = false;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(mVolumePath);
+            out.writeInt(entries.size());
+            for (int i=0; i<entries.size(); i++) {
+                final Node node = entries.get(i).getValue();
+                out.writeUTF(entries.get(i).getKey());
+                out.writeLong(node.mtime);
+                out.writeLong(node.listedTime);
+                out.writeLong(node.fileSize);
+                out.writeInt(node.children.length);
+                for (String child : node.children) {
+                    out.writeUTF(child);
+                }
+            }
+            out.flush();
+            ok = true;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed writing directory sizes", e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    ok = false;
+                }
+            }
+        }
+        if (ok && tmp.renameTo(mFile)) {
+            if (DEBUG) Log.i(TAG, "Wrote " + entries.size() + " directories");
+        } else {
+            tmp.delete();
+            mDirty = true;
+        }
+    }
+}
@@ -54,6 +54,14 @@ public class FileItemInfoLayout extends RelativeLayout implements Checkable {
         mFileNameView.setText(fileName.substring(mLengthExternalStorageDirPrefix));
     }
 
+    /**
+     * Shows the given text in place of a file name, such as for entries
+     * that were summed up.
+     */
+    public void setLabel(CharSequence label) {
+        mFileNameView.setText(label);
+    }
+
     public void setFileSize(String filesize) {
         mFileSizeView.setText(filesize);
     }
@@ -52,6 +52,7 @@ public class Memory extends SettingsPreferenceFragment {
     private static final int DLG_ERROR_UNMOUNT = 2;
 
     private static final int MENU_ID_USB = Menu.FIRST;
+    private static final int MENU_ID_RESCAN = Menu.FIRST + 1;
 
     private Resources mResources;
 
@@ -166,6 +167,8 @@ public class Memory extends SettingsPreferenceFragment {
         menu.add(Menu.NONE, MENU_ID_USB, 0, R.string.storage_menu_usb)
                 //.setIcon(com.android.internal.R.drawable.stat_sys_data_usb)
                 .setShowAsAction(MenuItem.SHOW_AS_ACTION_NEVER);
+        menu.add(Menu.NONE, MENU_ID_RESCAN, 0, R.string.storage_menu_rescan)
+                .setShowAsAction(MenuItem.SHOW_AS_ACTION_NEVER);
     }
 
     @Override
@@ -182,6 +185,11 @@ public class Memory extends SettingsPreferenceFragment {
                     startFragment(this, UsbSettings.class.getCanonicalName(), -1, null);
                 }
                 return true;
+            case MENU_ID_RESCAN:
+                for (int i = 0; i < mStorageVolumePreferenceCategories.length; i++) {
+                    mStorageVolumePreferenceCategories[i].rescan();
+                }
+                return true;
         }
         return super.onOptionsItemSelected(item);
     }
@@ -0,0 +1,457 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.deviceinfo;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.android.settings.deviceinfo.StorageMeasurement.FileInfo;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import libcore.io.ErrnoException;
+import libcore.io.Libcore;
+import libcore.io.OsConstants;
+import libcore.io.StructStat;
+
+/**
+ * Tree of the files counted as Misc, expanded one directory at a time.
+ *
+ * <p>The top level comes from the measurement; children of a directory are
+ * measured on the measurement pool the first time it is expanded and kept
+ * for later visits. Each level below the top only keeps its
+ * {@link #MAX_CHILDREN} largest entries, sorted by size, and sums up the rest
+ * in a single placeholder.
+ *
+ * <p>Nodes are only touched on the main thread. Background work hands its
+ * results back through a {@link Handler}, which also makes it safe to
+ * update sizes in place as files are deleted. The tree outlives the screen
+ * showing it, so expansions and deletes carry on across activity restarts;
+ * the screen showing the tree registers as its {@link Listener} while
+ * resumed.
+ */
+final class MiscFileTree {
+    /** Most entries kept for one directory; the rest are summed up. */
+    static final int MAX_CHILDREN = 50;
+
+    interface Listener {
+        /** Children of a node were measured, or sizes changed. */
+        void onTreeChanged();
+        /** Some of the files being deleted are gone. */
+        void onDeleteProgress(long deletedBytes, long totalBytes);
+        /** Deleting is over. */
+        void onDeleteFinished();
+    }
+
+    static final class Node {
+        final String mPath;
+        final boolean mIsDirectory;
+        final Node mParent;
+        final int mDepth;
+        long mSize;
+
+        /** Entries of this directory, or null until measured. */
+        ArrayList<Node> mChildren;
+        boolean mExpanded;
+        boolean mExpanding;
+
+        /** Entries past {@link #MAX_CHILDREN}, when this is a placeholder. */
+        int mOmittedCount;
+
+        Node(Node parent, String path, boolean isDirectory, long size) {
+            mParent = parent;
+            mDepth = parent != null ? parent.mDepth + 1 : -1;
+            mPath = path;
+            mIsDirectory = isDirectory;
+            mSize = size;
+        }
+
+        boolean isPlaceholder() {
+            return mOmittedCount > 0;
+        }
+
+        boolean isAncestorOf(Node node) {
+            for (Node n = node.mParent; n != null; n = n.mParent) {
+                if (n == this) return true;
+            }
+            return false;
+        }
+    }
+
+    private static final Comparator<Node> SIZE_COMPARATOR = new Comparator<Node>() {
+        public int compare(Node a, Node b) {
+            if (a.mSize == b.mSize) return 0;
+            return a.mSize < b.mSize ? 1 : -1;
+        }
+    };
+
+    private final List<FileInfo> mSource;
+    private final Node mRoot;
+    private final Executor mExecutor;
+    private final DirectorySizeCache mDirectorySizes;
+    private final StorageMeasurement mMeasurement;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private Listener mListener;
+
+    // Delete in progress, if any.
+    private ArrayList<Node> mDeleting;
+    private long mDeletedBytes;
+    private long mDeleteTotalBytes;
+
+    MiscFileTree(List<FileInfo> source, Executor executor, DirectorySizeCache directorySizes,
+            StorageMeasurement measurement) {
+        mSource = source;
+        mExecutor = executor;
+        mDirectorySizes = directorySizes;
+        mMeasurement = measurement;
+
+        mRoot = new Node(null, null, true, 0);
+        final ArrayList<Node> children = new ArrayList<Node>(source.size());
+        for (FileInfo info : source) {
+            children.add(new Node(mRoot, info.mFileName,
+                    new File(info.mFileName).isDirectory(), info.mSize));
+            mRoot.mSize += info.mSize;
+        }
+        // the top level is listed in full, as every entry must stay
+        // selectable
+        Collections.sort(children, SIZE_COMPARATOR);
+        mRoot.mChildren = children;
+        mRoot.mExpanded = true;
+    }
+
+    /**
+     * Sets the one listener told about changes, or null while nothing shows
+     * the tree.
+     */
+    void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Whether this tree was built from the given measurement results.
+     */
+    boolean isFrom(List<FileInfo> source) {
+        return mSource == source;
+    }
+
+    Node getRoot() {
+        return mRoot;
+    }
+
+    /**
+     * Returns the nodes showing, depth first, with children of expanded
+     * directories right after them.
+     */
+    ArrayList<Node> flatten() {
+        final ArrayList<Node> rows = new ArrayList<Node>();
+        addRows(mRoot, rows);
+        return rows;
+    }
+
+    private static void addRows(Node node, ArrayList<Node> rows) {
+        if (!node.mExpanded || node.mChildren == null) return;
+        for (Node child : node.mChildren) {
+            rows.add(child);
+            addRows(child, rows);
+        }
+    }
+
+    /**
+     * Expands the given directory, measuring its children in the background
+     * the first time. The listener is told once they are available.
+     */
+    void expand(final Node node) {
+        if (!node.mIsDirectory || node.isPlaceholder() || isDeleting()) return;
+        node.mExpanded = true;
+        if (node.mChildren != null) {
+            notifyChanged();
+            return;
+        }
+        if (node.mExpanding) return;
+        node.mExpanding = true;
+
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                final File[] files = new File(node.mPath).listFiles();
+                if (files == null || files.length == 0) {
+                    onChildrenMeasured(node, new ArrayList<Node>());
+                    return;
+                }
+
+                // Each subdirectory is measured as its own task, so large
+                // ones don't hold up the rest; the last one to finish
+                // publishes the children.
+                final Node[] children = new Node[files.length];
+                final AtomicInteger pending = new AtomicInteger(files.length);
+                for (int i = 0; i < files.length; i++) {
+                    final File file = files[i];
+                    final int index = i;
+                    // links are listed, but neither followed nor counted
+                    final StructStat stat = lstat(file);
+                    final boolean isDirectory = stat != null
+                            && OsConstants.S_ISDIR(stat.st_mode);
+                    final Runnable measure = new Runnable() {
+                        public void run() {
+                            final long size;
+                            if (isDirectory) {
+                                size = getDirectorySize(file);
+                            } else if (stat != null && OsConstants.S_ISREG(stat.st_mode)) {
+                                size = stat.st_size;
+                            } else {
+                                size = 0;
+                            }
+                            children[index] = new Node(node, file.getAbsolutePath(),
+                                    isDirectory, size);
+                            if (pending.decrementAndGet() == 0) {
+                                final ArrayList<Node> list = new ArrayList<Node>(children.length);
+                                Collections.addAll(list, children);
+                                onChildrenMeasured(node, list);
+                            }
+                        }
+                    };
+                    if (isDirectory) {
+                        mExecutor.execute(measure);
+                    } else {
+                        measure.run();
+                    }
+                }
+            }
+        });
+    }
+
+    void collapse(Node node) {
+        node.mExpanded = false;
+    }
+
+    private void onChildrenMeasured(final Node node, final ArrayList<Node> children) {
+        mHandler.post(new Runnable() {
+            public void run() {
+                node.mExpanding = false;
+                setChildren(node, children);
+                notifyChanged();
+            }
+        });
+    }
+
+    private void notifyChanged() {
+        if (mListener != null) {
+            mListener.onTreeChanged();
+        }
+    }
+
+    /**
+     * Sorts the given children by size, keeping only the largest and a
+     * placeholder for the rest.
+     */
+    private static void setChildren(Node node, ArrayList<Node> children) {
+        Collections.sort(children, SIZE_COMPARATOR);
+        if (children.size() > MAX_CHILDREN) {
+            final Node rest = new Node(node, null, false, 0);
+            for (int i = MAX_CHILDREN; i < children.size(); i++) {
+                rest.mSize += children.get(i).mSize;
+                rest.mOmittedCount++;
+            }
+            final ArrayList<Node> kept = new ArrayList<Node>(children.subList(0, MAX_CHILDREN));
+            kept.add(rest);
+            children = kept;
+        }
+        node.mChildren = children;
+    }
+
+    private long getDirectorySize(File dir) {
+        if (mDirectorySizes != null) {
+            return mDirectorySizes.getDirectorySize(dir.getAbsolutePath());
+        }
+        // Secondary volumes have no cache; walk them without following
+        // links, like the cache does.
+        long size = 0;
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                final StructStat stat = lstat(file);
+                if (stat == null) {
+                    continue;
+                } else if (OsConstants.S_ISDIR(stat.st_mode)) {
+                    size += getDirectorySize(file);
+                } else if (OsConstants.S_ISREG(stat.st_mode)) {
+                    size += stat.st_size;
+                }
+            }
+        }
+        return size;
+    }
+
+    private static StructStat lstat(File file) {
+        try {
+            return Libcore.os.lstat(file.getPath());
+        } catch (ErrnoException e) {
+            return null;
+        }
+    }
+
+    boolean isDeleting() {
+        return mDeleting != null;
+    }
+
+    long getDeletedBytes() {
+        return mDeletedBytes;
+    }
+
+    long getDeleteTotalBytes() {
+        return mDeleteTotalBytes;
+    }
+
+    /**
+     * Deletes the given entries in the background, taking the bytes freed
+     * off the tree as it goes. Entries inside another one given should be
+     * left out. Only one delete runs at a time.
+     */
+    void delete(final ArrayList<Node> nodes) {
+        if (isDeleting() || nodes.isEmpty()) return;
+        mDeleting = nodes;
+        mDeletedBytes = 0;
+        mDeleteTotalBytes = 0;
+        for (Node node : nodes) {
+            mDeleteTotalBytes += node.mSize;
+        }
+
+        mExecutor.execute(new Runnable() {
+            // Progress is reported once at least this many bytes were freed,
+            // or an entry is done.
+            private static final long PROGRESS_BYTES = 256 * 1024;
+
+            private long mUnreported;
+
+            public void run() {
+                for (Node node : nodes) {
+                    mUnreported = 0;
+                    final boolean deleted = delete(new File(node.mPath), node);
+                    postDeleteProgress(node, mUnreported, deleted);
+                }
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        onDeleteFinished(nodes);
+                    }
+                });
+            }
+
+            // Deletes all files and subdirectories under given dir.
+            // Returns true if all deletions were successful.
+            // If a deletion fails, the method stops attempting to delete and returns false.
+            private boolean delete(File file, Node node) {
+                // links are removed themselves, never what they point to
+                final StructStat stat = lstat(file);
+                if (stat != null && OsConstants.S_ISDIR(stat.st_mode)) {
+                    String[] children = file.list();
+                    if (children != null) {
+                        for (int i=0; i < children.length; i++) {
+                            boolean success = delete(new File(file, children[i]), node);
+                            if (!success) {
+                                return false;
+                            }
+                        }
+                    }
+                }
+                final long length = stat != null && OsConstants.S_ISREG(stat.st_mode)
+                        ? stat.st_size : 0;
+                // The directory is now empty so delete it
+                if (!file.delete()) {
+                    return false;
+                }
+                mUnreported += length;
+                if (mUnreported >= PROGRESS_BYTES) {
+                    postDeleteProgress(node, mUnreported, false);
+                    mUnreported = 0;
+                }
+                return true;
+            }
+        });
+    }
+
+    private void postDeleteProgress(final Node node, final long bytes, final boolean done) {
+        mHandler.post(new Runnable() {
+            public void run() {
+                onDeleted(node, bytes);
+                if (done) {
+                    remove(node);
+                }
+                mDeletedBytes += bytes;
+                if (mListener != null) {
+                    mListener.onDeleteProgress(mDeletedBytes, mDeleteTotalBytes);
+                }
+            }
+        });
+    }
+
+    private void onDeleteFinished(ArrayList<Node> nodes) {
+        for (Node node : nodes) {
+            if (node.mParent != null) {
+                resort(node.mParent);
+            }
+        }
+        mDeleting = null;
+        // Misc and the other totals changed
+        mMeasurement.invalidate();
+        if (mListener != null) {
+            mListener.onDeleteFinished();
+        }
+    }
+
+    /**
+     * Takes the given number of bytes off the node and every directory above
+     * it, after they were deleted.
+     */
+    private void onDeleted(Node node, long bytes) {
+        for (Node n = node; n != null; n = n.mParent) {
+            n.mSize = Math.max(0, n.mSize - bytes);
+        }
+    }
+
+    /**
+     * Drops a node whose file is gone, keeping its siblings sorted.
+     */
+    private void remove(Node node) {
+        onDeleted(node, node.mSize);
+        final Node parent = node.mParent;
+        if (parent != null && parent.mChildren != null) {
+            parent.mChildren.remove(node);
+        }
+    }
+
+    /**
+     * Re-sorts the children of the given directory after sizes changed.
+     */
+    private void resort(Node node) {
+        if (node.mChildren == null) return;
+        Node placeholder = null;
+        final int last = node.mChildren.size() - 1;
+        if (last >= 0 && node.mChildren.get(last).isPlaceholder()) {
+            placeholder = node.mChildren.remove(last);
+        }
+        Collections.sort(node.mChildren, SIZE_COMPARATOR);
+        if (placeholder != null) {
+            node.mChildren.add(placeholder);
+        }
+    }
+}
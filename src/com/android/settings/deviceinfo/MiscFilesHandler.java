@@ -18,6 +18,7 @@ package com.android.settings.deviceinfo;
 
 import android.app.Activity;
 import android.app.ListActivity;
+import android.app.ProgressDialog;
 import android.content.Context;
 import android.os.Bundle;
 import android.os.storage.StorageVolume;
@@ -39,21 +40,33 @@ import android.widget.CompoundButton.OnCheckedChangeListener;
 import android.widget.ListView;
 
 import com.android.settings.R;
-import com.android.settings.deviceinfo.StorageMeasurement.FileInfo;
+import com.android.settings.deviceinfo.MiscFileTree.Node;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.List;
 
 /**
- * This class handles the selection and removal of Misc files.
+ * This class handles the selection and removal of Misc files. Folders can be
+ * expanded to find what fills them, and selected files are deleted in the
+ * background. Both are run by the {@link MiscFileTree}, which this activity
+ * only watches while resumed.
  */
-public class MiscFilesHandler extends ListActivity {
+public class MiscFilesHandler extends ListActivity implements MiscFileTree.Listener {
     private static final String TAG = "MemorySettings";
     private String mNumSelectedFormat;
     private String mNumBytesSelectedFormat;
     private MemoryMearurementAdapter mAdapter;
     private LayoutInflater mInflater;
+    private StorageMeasurement mMeasurement;
+    private MiscFileTree mTree;
+    private int mIndent;
+
+    // Rows can't move while items are checked, since the list tracks them
+    // by position; expansions finishing meanwhile are shown afterwards.
+    private boolean mSelecting;
+    private boolean mRebuildPending;
+
+    private ProgressDialog mDeleteDialog;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -62,6 +75,12 @@ public class MiscFilesHandler extends ListActivity {
         setTitle(R.string.misc_files);
         mNumSelectedFormat = getString(R.string.misc_files_selected_count);
         mNumBytesSelectedFormat = getString(R.string.misc_files_selected_count_bytes);
+        mIndent = (int) (16 * getResources().getDisplayMetrics().density);
+        final StorageVolume storageVolume = getIntent().getParcelableExtra(
+                StorageVolume.EXTRA_STORAGE_VOLUME);
+        mMeasurement =
+            StorageMeasurement.getInstance(this, storageVolume, false /*Unused as a key*/);
+        mTree = mMeasurement.getMiscFileTree();
         mAdapter = new MemoryMearurementAdapter(this);
         mInflater = (LayoutInflater)getSystemService(Context.LAYOUT_INFLATER_SERVICE);
         setContentView(R.layout.settings_storage_miscfiles_list);
@@ -70,20 +89,98 @@ public class MiscFilesHandler extends ListActivity {
         lv.setChoiceMode(ListView.CHOICE_MODE_MULTIPLE_MODAL);
         lv.setMultiChoiceModeListener(new ModeCallback(this));
         setListAdapter(mAdapter);
-    } 
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        if (mTree == null) return;
+        mTree.setListener(this);
+        // catch up on expansions and deletes done while away
+        rebuild();
+        if (mTree.isDeleting()) {
+            showDeleteDialog();
+        }
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        if (mTree == null) return;
+        mTree.setListener(null);
+        dismissDeleteDialog();
+    }
+
+    @Override
+    public void onTreeChanged() {
+        rebuild();
+    }
+
+    @Override
+    public void onDeleteProgress(long deletedBytes, long totalBytes) {
+        if (mDeleteDialog != null) {
+            mDeleteDialog.setProgress((int) (deletedBytes / 1024));
+        }
+        mAdapter.notifyDataSetChanged();
+    }
+
+    @Override
+    public void onDeleteFinished() {
+        dismissDeleteDialog();
+        rebuild();
+    }
+
+    private void showDeleteDialog() {
+        if (mDeleteDialog == null) {
+            mDeleteDialog = new ProgressDialog(this);
+            mDeleteDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+            mDeleteDialog.setMessage(getString(R.string.misc_files_deleting));
+            mDeleteDialog.setCancelable(false);
+        }
+        // in KB, as progress is only an int
+        mDeleteDialog.setMax((int) (mTree.getDeleteTotalBytes() / 1024));
+        mDeleteDialog.setProgress((int) (mTree.getDeletedBytes() / 1024));
+        mDeleteDialog.show();
+    }
+
+    private void dismissDeleteDialog() {
+        if (mDeleteDialog != null && mDeleteDialog.isShowing()) {
+            mDeleteDialog.dismiss();
+        }
+        mDeleteDialog = null;
+    }
+
+    private void rebuild() {
+        if (mSelecting) {
+            mRebuildPending = true;
+            return;
+        }
+        mRebuildPending = false;
+        mAdapter.rebuild();
+    }
+
+    private void toggleExpanded(Node node) {
+        if (node.mExpanded) {
+            mTree.collapse(node);
+            rebuild();
+        } else {
+            mTree.expand(node);
+            // show the folder as calculating until its children are measured
+            rebuild();
+        }
+    }
 
     private class ModeCallback implements ListView.MultiChoiceModeListener {
-        private int mDataCount;
         private final Context mContext;
 
         public ModeCallback(Context context) {
             mContext = context;
-            mDataCount = mAdapter.getCount();
         }
 
         public boolean onCreateActionMode(ActionMode mode, Menu menu) {
             final MenuInflater inflater = getMenuInflater();
             inflater.inflate(R.menu.misc_files_menu, menu);
+            mSelecting = true;
             return true;
         }
 
@@ -93,45 +190,39 @@ public class MiscFilesHandler extends ListActivity {
 
         public boolean onActionItemClicked(ActionMode mode, MenuItem item) {
             ListView lv = getListView();
+            final int count = mAdapter.getCount();
             switch (item.getItemId()) {
             case R.id.action_delete:
-                // delete the files selected
+                // delete the files selected, skipping those inside a folder
+                // that is deleted as a whole
                 SparseBooleanArray checkedItems = lv.getCheckedItemPositions();
-                int checkedCount = getListView().getCheckedItemCount();
-                if (checkedCount > mDataCount) {
-                    throw new IllegalStateException("checked item counts do not match. " +
-                            "checkedCount: " + checkedCount + ", dataSize: " + mDataCount);
-                }
-                if (mDataCount > 0) {
-                    ArrayList<Object> toRemove = new ArrayList<Object>();
-                    for (int i = 0; i < mDataCount; i++) {
-                        if (!checkedItems.get(i)) {
-                            //item not selected
-                            continue;
-                        }
+                ArrayList<Node> toRemove = new ArrayList<Node>();
+                for (int i = 0; i < count; i++) {
+                    if (!checkedItems.get(i)) {
+                        //item not selected
+                        continue;
+                    }
+                    final Node node = mAdapter.getItem(i);
+                    if (!isInside(node, toRemove)) {
                         if (StorageMeasurement.LOGV) {
-                            Log.i(TAG, "deleting: " + mAdapter.getItem(i));
-                        }
-                        // delete the file
-                        File file = new File(mAdapter.getItem(i).mFileName);
-                        if (file.isDirectory()) {
-                            deleteDir(file);
-                        } else {
-                            file.delete();                            
+                            Log.i(TAG, "deleting: " + node.mPath);
                         }
-                        toRemove.add(mAdapter.getItem(i));
+                        toRemove.add(node);
                     }
-                    mAdapter.removeAll(toRemove);
-                    mAdapter.notifyDataSetChanged();
-                    mDataCount = mAdapter.getCount();
+                }
+                if (!toRemove.isEmpty() && !mTree.isDeleting()) {
+                    mTree.delete(toRemove);
+                    showDeleteDialog();
                 }
                 mode.finish();
                 break;
 
             case R.id.action_select_all:
                 // check ALL items
-                for (int i = 0; i < mDataCount; i++) {
-                    lv.setItemChecked(i, true);
+                for (int i = 0; i < count; i++) {
+                    if (mAdapter.isEnabled(i)) {
+                        lv.setItemChecked(i, true);
+                    }
                 }
                 // update the title and subtitle with number selected and numberBytes selected
                 onItemCheckedStateChanged(mode, 1, 0, true);
@@ -140,41 +231,34 @@ public class MiscFilesHandler extends ListActivity {
             return true;
         }
 
-        // Deletes all files and subdirectories under given dir.
-        // Returns true if all deletions were successful.
-        // If a deletion fails, the method stops attempting to delete and returns false.
-        private boolean deleteDir(File dir) {
-            if (dir.isDirectory()) {
-                String[] children = dir.list();
-                for (int i=0; i < children.length; i++) {
-                    boolean success = deleteDir(new File(dir, children[i]));
-                    if (!success) {
-                        return false;
-                    }
-                }
-            }
-            // The directory is now empty so delete it
-            return dir.delete();
-        }
-
         public void onDestroyActionMode(ActionMode mode) {
-            // This block intentionally left blank
+            mSelecting = false;
+            if (mRebuildPending) {
+                rebuild();
+            }
         }
 
         public void onItemCheckedStateChanged(ActionMode mode, int position, long id,
                 boolean checked) {
             ListView lv = getListView();
             int numChecked = lv.getCheckedItemCount();
-            mode.setTitle(String.format(mNumSelectedFormat, numChecked, mAdapter.getCount()));
+            mode.setTitle(String.format(mNumSelectedFormat, numChecked,
+                    mAdapter.getSelectableCount()));
 
-            // total the sizes of all items selected so far
+            // total the sizes of all items selected so far, counting items
+            // inside a selected folder only once
             SparseBooleanArray checkedItems = lv.getCheckedItemPositions();
             long selectedDataSize = 0;
             if (numChecked > 0) {
-                for (int i = 0; i < mDataCount; i++) {
+                final ArrayList<Node> selected = new ArrayList<Node>();
+                for (int i = 0; i < mAdapter.getCount(); i++) {
                     if (checkedItems.get(i)) {
                         // item is checked
-                        selectedDataSize += mAdapter.getItem(i).mSize;
+                        final Node node = mAdapter.getItem(i);
+                        if (!isInside(node, selected)) {
+                            selected.add(node);
+                            selectedDataSize += node.mSize;
+                        }
                     }
                 }
             }
@@ -184,34 +268,58 @@ public class MiscFilesHandler extends ListActivity {
         }
     }
 
+    /**
+     * Whether the given node is below one of the given folders. Rows come
+     * depth first, so folders are always seen before their contents.
+     */
+    private static boolean isInside(Node node, ArrayList<Node> folders) {
+        for (Node folder : folders) {
+            if (folder.isAncestorOf(node)) return true;
+        }
+        return false;
+    }
+
     class MemoryMearurementAdapter extends BaseAdapter {
-        private ArrayList<StorageMeasurement.FileInfo> mData = null;
-        private long mDataSize = 0;
+        private ArrayList<Node> mData = new ArrayList<Node>();
+        private int mSelectableCount;
         private Context mContext;
 
         public MemoryMearurementAdapter(Activity activity) {
             mContext = activity;
-            final StorageVolume storageVolume = activity.getIntent().getParcelableExtra(
-                    StorageVolume.EXTRA_STORAGE_VOLUME);
-            StorageMeasurement mMeasurement = 
-                StorageMeasurement.getInstance(activity, storageVolume, false /*Unused as a key*/);
-            if (mMeasurement == null) return;
-            mData = (ArrayList<StorageMeasurement.FileInfo>) mMeasurement.mFileInfoForMisc;
-            if (mData != null) {
-                for (StorageMeasurement.FileInfo info : mData) {
-                    mDataSize += info.mSize;
+            if (mTree != null) {
+                mData = mTree.flatten();
+                countSelectable();
+            }
+        }
+
+        void rebuild() {
+            if (mTree == null) return;
+            mData = mTree.flatten();
+            countSelectable();
+            notifyDataSetChanged();
+        }
+
+        private void countSelectable() {
+            mSelectableCount = 0;
+            for (Node node : mData) {
+                if (!node.isPlaceholder()) {
+                    mSelectableCount++;
                 }
             }
         }
 
         @Override
         public int getCount() {
-            return (mData == null) ? 0 : mData.size();
+            return mData.size();
+        }
+
+        public int getSelectableCount() {
+            return mSelectableCount;
         }
 
         @Override
-        public StorageMeasurement.FileInfo getItem(int position) {
-            if (mData == null || mData.size() <= position) {
+        public Node getItem(int position) {
+            if (mData.size() <= position) {
                 return null;
             }
             return mData.get(position);
@@ -219,29 +327,22 @@ public class MiscFilesHandler extends ListActivity {
 
         @Override
         public long getItemId(int position) {
-            if (mData == null || mData.size() <= position) {
-                return 0;
-            }
-            return mData.get(position).mId;
+            return position;
         }
 
-        public void removeAll(List<Object> objs) {
-            if (mData == null) {
-                return;
-            }
-            for (Object o : objs) {
-                mData.remove(o);
-                mDataSize -= ((StorageMeasurement.FileInfo) o).mSize;
-            }
+        @Override
+        public boolean areAllItemsEnabled() {
+            return false;
         }
 
-        public long getDataSize() {
-            return mDataSize;
+        @Override
+        public boolean isEnabled(int position) {
+            // entries summed up can't be selected
+            return !getItem(position).isPlaceholder();
         }
 
-        @Override
-        public void notifyDataSetChanged() {
-            super.notifyDataSetChanged();
+        public long getDataSize() {
+            return mTree != null ? mTree.getRoot().mSize : 0;
         }
 
         @Override
@@ -249,9 +350,17 @@ public class MiscFilesHandler extends ListActivity {
             final FileItemInfoLayout view = (convertView == null) ?
                     (FileItemInfoLayout) mInflater.inflate(R.layout.settings_storage_miscfiles,
                             parent, false) : (FileItemInfoLayout) convertView;
-            FileInfo item = getItem(position);
-            view.setFileName(item.mFileName);
-            view.setFileSize(Formatter.formatFileSize(mContext, item.mSize));
+            final Node item = getItem(position);
+            view.setPadding(item.mDepth * mIndent, view.getPaddingTop(), view.getPaddingRight(),
+                    view.getPaddingBottom());
+            if (item.isPlaceholder()) {
+                view.setLabel(getString(R.string.misc_files_more, item.mOmittedCount));
+            } else {
+                view.setFileName(item.mIsDirectory ? item.mPath + File.separator : item.mPath);
+            }
+            view.setFileSize(item.mExpanding ? getString(R.string.memory_calculating_size)
+                    : Formatter.formatFileSize(mContext, item.mSize));
+            view.getCheckBox().setVisibility(item.isPlaceholder() ? View.INVISIBLE : View.VISIBLE);
             final ListView listView = (ListView) parent;
             final int listPosition = position;
             view.getCheckBox().setOnCheckedChangeListener(new OnCheckedChangeListener() {
@@ -265,7 +374,7 @@ public class MiscFilesHandler extends ListActivity {
             view.setOnLongClickListener(new OnLongClickListener() {
                 @Override
                 public boolean onLongClick(View v) {
-                    if (listView.getCheckedItemCount() > 0) {
+                    if (listView.getCheckedItemCount() > 0 || item.isPlaceholder()) {
                         return false;
                     }
                     listView.setItemChecked(listPosition, !view.isChecked());
@@ -276,11 +385,15 @@ public class MiscFilesHandler extends ListActivity {
                 @Override
                 public void onClick(View v) {
                     if (listView.getCheckedItemCount() > 0) {
-                        listView.setItemChecked(listPosition, !view.isChecked());
+                        if (!item.isPlaceholder()) {
+                            listView.setItemChecked(listPosition, !view.isChecked());
+                        }
+                    } else if (item.mIsDirectory && !mTree.isDeleting()) {
+                        toggleExpanded(item);
                     }
                 }
             });
             return view;
         }
     }
-}
\ No newline at end of file
+}
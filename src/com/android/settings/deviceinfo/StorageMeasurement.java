@@ -17,6 +17,7 @@
 package com.android.settings.deviceinfo;
 
 import android.content.ComponentName;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
@@ -24,6 +25,10 @@ import android.content.pm.ApplicationInfo;
 import android.content.pm.IPackageStatsObserver;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageStats;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.mtp.MtpConstants;
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
@@ -31,8 +36,11 @@ import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
+import android.os.Process;
 import android.os.StatFs;
+import android.os.SystemClock;
 import android.os.storage.StorageVolume;
+import android.provider.MediaStore;
 import android.util.Log;
 
 import com.android.internal.app.IMediaContainerService;
@@ -40,10 +48,16 @@ import com.android.internal.app.IMediaContainerService;
 import java.io.File;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Measure the memory for various systems.
@@ -79,11 +93,43 @@ public class StorageMeasurement {
 
     public static final String MEDIA_SIZES = "media_sizes";
 
+    public static final String MEASUREMENT_FINISHED = "measurement_finished";
+
     private static final String DEFAULT_CONTAINER_PACKAGE = "com.android.defcontainer";
 
     private static final ComponentName DEFAULT_CONTAINER_COMPONENT = new ComponentName(
             DEFAULT_CONTAINER_PACKAGE, "com.android.defcontainer.DefaultContainerService");
 
+    // Directories are measured on a small pool shared by all volumes, so that
+    // one large directory doesn't hold up all the others.
+    private static final int MAX_MEASUREMENT_THREADS = 3;
+
+    private static final ThreadPoolExecutor sDirectoryExecutor;
+
+    // Media sizes from the MediaStore are checked against the directories
+    // walked in the background, and replaced by the walked size when they are
+    // off by more than the larger of these.
+    private static final long MEDIA_TOLERANCE_BYTES = 1024 * 1024;
+    private static final int MEDIA_TOLERANCE_PERCENT = 5;
+
+    static {
+        final AtomicInteger count = new AtomicInteger();
+        sDirectoryExecutor = new ThreadPoolExecutor(MAX_MEASUREMENT_THREADS,
+                MAX_MEASUREMENT_THREADS, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    public Thread newThread(final Runnable r) {
+                        return new Thread("DirectoryMeasurement#" + count.incrementAndGet()) {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        };
+                    }
+                });
+        sDirectoryExecutor.allowCoreThreadTimeOut(true);
+    }
+
     private final MeasurementHandler mHandler;
 
     private static Map<StorageVolume, StorageMeasurement> sInstances =
@@ -103,10 +149,23 @@ public class StorageMeasurement {
     final private boolean mIsPrimary;
     final private boolean mIsInternal;
 
-    List<FileInfo> mFileInfoForMisc;
+    // Sizes of directories measured on the primary volume, kept across visits
+    // so that only changed directories are listed again.
+    final private DirectorySizeCache mDirectorySizes;
+
+    volatile List<FileInfo> mFileInfoForMisc;
+
+    // Drill-down tree of mFileInfoForMisc; only touched on the main thread.
+    private MiscFileTree mMiscFileTree;
 
     public interface MeasurementReceiver {
         public void updateApproximate(Bundle bundle);
+        /**
+         * Sizes measured so far. Sizes not yet measured are left out, or are
+         * negative in {@link #MEDIA_SIZES}. When {@link #MEASUREMENT_FINISHED}
+         * is set, sizes left out couldn't be measured at all.
+         */
+        public void updatePartial(Bundle bundle);
         public void updateExact(Bundle bundle);
     }
 
@@ -114,6 +173,8 @@ public class StorageMeasurement {
         mStorageVolume = storageVolume;
         mIsInternal = storageVolume == null;
         mIsPrimary = !mIsInternal && isPrimary;
+        mDirectorySizes = mIsPrimary
+                ? new DirectorySizeCache(context.getCacheDir(), storageVolume.getPath()) : null;
 
         // Start the thread that will measure the disk usage.
         final HandlerThread handlerThread = new HandlerThread("MemoryMeasurement");
@@ -164,10 +225,35 @@ public class StorageMeasurement {
         mHandler.sendEmptyMessage(MeasurementHandler.MSG_DISCONNECT);
     }
 
+    /**
+     * Returns the tree of Misc files from the last measurement, keeping
+     * directories already expanded when nothing was measured since. Must be
+     * called on the main thread.
+     */
+    MiscFileTree getMiscFileTree() {
+        final List<FileInfo> fileInfo = mFileInfoForMisc;
+        if (fileInfo == null) {
+            return null;
+        }
+        if (mMiscFileTree == null || !mMiscFileTree.isFrom(fileInfo)) {
+            mMiscFileTree = new MiscFileTree(fileInfo, sDirectoryExecutor, mDirectorySizes,
+                    this);
+        }
+        return mMiscFileTree;
+    }
+
     public void invalidate() {
         mHandler.sendEmptyMessage(MeasurementHandler.MSG_INVALIDATE);
     }
 
+    /**
+     * Like {@link #invalidate()}, but also forget the sizes of directories
+     * kept from earlier measurements, so every directory is listed again.
+     */
+    public void invalidateAll() {
+        mHandler.sendMessage(mHandler.obtainMessage(MeasurementHandler.MSG_INVALIDATE, 1, 0));
+    }
+
     private void sendInternalApproximateUpdate() {
         MeasurementReceiver receiver = (mReceiver != null) ? mReceiver.get() : null;
         if (receiver == null) {
@@ -181,6 +267,35 @@ public class StorageMeasurement {
         receiver.updateApproximate(bundle);
     }
 
+    private void sendPartialUpdate(boolean appsMeasured, boolean downloadsMeasured,
+            boolean miscMeasured, boolean[] mediaMeasured, boolean finished) {
+        MeasurementReceiver receiver = (mReceiver != null) ? mReceiver.get() : null;
+        if (receiver == null) {
+            return;
+        }
+
+        Bundle bundle = new Bundle();
+        bundle.putLong(TOTAL_SIZE, mTotalSize);
+        bundle.putLong(AVAIL_SIZE, mAvailSize);
+        if (appsMeasured) {
+            bundle.putLong(APPS_USED, mAppsSize);
+        }
+        if (downloadsMeasured) {
+            bundle.putLong(DOWNLOADS_SIZE, mDownloadsSize);
+        }
+        if (miscMeasured) {
+            bundle.putLong(MISC_SIZE, mMiscSize);
+        }
+        final long[] mediaSizes = new long[mMediaSizes.length];
+        for (int i = 0; i < mediaSizes.length; i++) {
+            mediaSizes[i] = mediaMeasured[i] ? mMediaSizes[i] : -1;
+        }
+        bundle.putLongArray(MEDIA_SIZES, mediaSizes);
+        bundle.putBoolean(MEASUREMENT_FINISHED, finished);
+
+        receiver.updatePartial(bundle);
+    }
+
     private void sendExactUpdate() {
         MeasurementReceiver receiver = (mReceiver != null) ? mReceiver.get() : null;
         if (receiver == null) {
@@ -212,6 +327,41 @@ public class StorageMeasurement {
 
         public static final int MSG_INVALIDATE = 5;
 
+        public static final int MSG_DIRECTORY_MEASURED = 6;
+
+        public static final int MSG_APPS_MEASURED = 7;
+
+        public static final int MSG_MEDIA_QUERIED = 8;
+
+        // State of the exact measurement in progress; only touched on this
+        // handler's thread. Results of earlier measurements are told apart by
+        // their generation and dropped.
+        private int mGeneration;
+        private int mPendingParts;
+        private boolean mAppsMeasured;
+        private boolean mDownloadsMeasured;
+        private boolean mMiscMeasured;
+        private int mPendingMisc;
+        private boolean mMiscFailed;
+        private long mPendingMiscSize;
+        private ArrayList<FileInfo> mPendingMiscInfo;
+        private final int[] mPendingMedia =
+                new int[StorageVolumePreferenceCategory.sMediaCategories.length];
+        private final boolean[] mMediaMeasured =
+                new boolean[StorageVolumePreferenceCategory.sMediaCategories.length];
+        private final long[] mMediaQuerySizes =
+                new long[StorageVolumePreferenceCategory.sMediaCategories.length];
+        private final long[] mMediaWalkSizes =
+                new long[StorageVolumePreferenceCategory.sMediaCategories.length];
+        private final boolean[] mMediaWalkFailed =
+                new boolean[StorageVolumePreferenceCategory.sMediaCategories.length];
+        private boolean mMediaQueryDone;
+        private boolean mMediaQueried;
+        private long mMediaQueryTime;
+        private long mMediaWalkStart;
+        private long mMediaWalkTime;
+        private int mPendingMediaWalks;
+
         private Object mLock = new Object();
 
         private IMediaContainerService mDefaultContainer;
@@ -289,6 +439,9 @@ public class StorageMeasurement {
                             context.unbindService(mDefContainerConn);
                         }
                     }
+                    // Directories still being measured can't use the
+                    // service any more; drop whatever they report.
+                    mGeneration++;
                     break;
                 }
                 case MSG_COMPLETED: {
@@ -298,11 +451,251 @@ public class StorageMeasurement {
                 }
                 case MSG_INVALIDATE: {
                     mMeasured = false;
+                    // Results of a measurement in progress are out of date
+                    mGeneration++;
+                    if (msg.arg1 != 0 && mDirectorySizes != null) {
+                        mDirectorySizes.clear();
+                    }
+                    break;
+                }
+                case MSG_DIRECTORY_MEASURED: {
+                    onDirectoryMeasured((DirectoryResult) msg.obj);
+                    break;
+                }
+                case MSG_MEDIA_QUERIED: {
+                    onMediaQueried((MediaQueryResult) msg.obj);
+                    break;
+                }
+                case MSG_APPS_MEASURED: {
+                    if (msg.arg1 == mGeneration && !mAppsMeasured) {
+                        mAppsMeasured = true;
+                        onPartMeasured();
+                    }
                     break;
                 }
             }
         }
 
+        /**
+         * Measure the given directory on the pool, reporting back to this
+         * handler with {@link #MSG_DIRECTORY_MEASURED}.
+         */
+        private void submitDirectory(final IMediaContainerService imcs, final int kind,
+                final int index, final String path, final long id) {
+            final int generation = mGeneration;
+            mPendingParts++;
+            sDirectoryExecutor.execute(new Runnable() {
+                public void run() {
+                    final long size = mDirectorySizes != null
+                            ? mDirectorySizes.getDirectorySize(path)
+                            : getDirectorySize(imcs, path);
+                    obtainMessage(MSG_DIRECTORY_MEASURED,
+                            new DirectoryResult(generation, kind, index, path, size, id))
+                            .sendToTarget();
+                }
+            });
+        }
+
+        private void onDirectoryMeasured(DirectoryResult result) {
+            if (result.mGeneration != mGeneration) {
+                return;
+            }
+
+            switch (result.mKind) {
+                case DirectoryResult.KIND_MEDIA: {
+                    final int i = result.mIndex;
+                    if (result.mSize < 0) {
+                        mMediaWalkFailed[i] = true;
+                    } else {
+                        mMediaWalkSizes[i] += result.mSize;
+                    }
+                    if (--mPendingMedia[i] == 0) {
+                        resolveMediaSize(i);
+                    }
+                    if (--mPendingMediaWalks == 0) {
+                        mMediaWalkTime = SystemClock.elapsedRealtime() - mMediaWalkStart;
+                        logMediaTimes();
+                    }
+                    break;
+                }
+                case DirectoryResult.KIND_DOWNLOADS: {
+                    if (result.mSize >= 0) {
+                        mDownloadsSize = result.mSize;
+                        mDownloadsMeasured = true;
+                    }
+                    break;
+                }
+                case DirectoryResult.KIND_MISC: {
+                    if (result.mSize >= 0) {
+                        mPendingMiscInfo.add(
+                                new FileInfo(result.mPath, result.mSize, result.mId));
+                        mPendingMiscSize += result.mSize;
+                    } else {
+                        mMiscFailed = true;
+                    }
+                    if (--mPendingMisc == 0) {
+                        publishMisc();
+                    }
+                    break;
+                }
+            }
+
+            onPartMeasured();
+        }
+
+        private void onPartMeasured() {
+            mPendingParts--;
+            if (mPendingParts > 0) {
+                sendPartialUpdate(mAppsMeasured, mDownloadsMeasured, mMiscMeasured,
+                        mMediaMeasured, false);
+            } else if (!isFullyMeasured()) {
+                // Some parts couldn't be measured; show what is known, and
+                // measure everything again next time
+                sendPartialUpdate(mAppsMeasured, mDownloadsMeasured, mMiscMeasured,
+                        mMediaMeasured, true);
+            } else {
+                onInternalMeasurementComplete();
+                if (mDirectorySizes != null) {
+                    sDirectoryExecutor.execute(new Runnable() {
+                        public void run() {
+                            mDirectorySizes.writeIfDirty();
+                        }
+                    });
+                }
+            }
+        }
+
+        private void onMediaQueried(MediaQueryResult result) {
+            if (result.mGeneration != mGeneration) {
+                return;
+            }
+            mMediaQueryDone = true;
+            mMediaQueried = result.mSizes != null;
+            mMediaQueryTime = result.mTime;
+            if (mMediaQueried) {
+                System.arraycopy(result.mSizes, 0, mMediaQuerySizes, 0, mMediaQuerySizes.length);
+            }
+            for (int i = 0; i < mMediaQuerySizes.length; i++) {
+                resolveMediaSize(i);
+            }
+            logMediaTimes();
+            onPartMeasured();
+        }
+
+        /**
+         * Pick the size of the given media category from what is known so
+         * far. The MediaStore total is shown as soon as it's in, and kept
+         * unless the walk, once done, disagrees with it.
+         */
+        private void resolveMediaSize(int i) {
+            final boolean walked = mPendingMedia[i] == 0 && !mMediaWalkFailed[i];
+            if (mMediaQueried && (!walked
+                    || isWithinTolerance(mMediaQuerySizes[i], mMediaWalkSizes[i]))) {
+                mMediaSizes[i] = mMediaQuerySizes[i];
+                mMediaMeasured[i] = true;
+            } else if (walked) {
+                if (mMediaQueried) {
+                    Log.w(TAG, "MediaStore size " + mMediaQuerySizes[i]
+                            + " for media category " + i + " disagrees with walked "
+                            + mMediaWalkSizes[i] + ", using walked");
+                }
+                mMediaSizes[i] = mMediaWalkSizes[i];
+                mMediaMeasured[i] = true;
+            } else {
+                // walk failed or still running, and no MediaStore total
+                mMediaSizes[i] = 0;
+                mMediaMeasured[i] = false;
+            }
+        }
+
+        private void logMediaTimes() {
+            if (mPendingMediaWalks == 0 && mMediaQueryDone) {
+                Log.i(TAG, "Media sizes of " + getVolumePath() + ": MediaStore query "
+                        + (mMediaQueried ? mMediaQueryTime + "ms" : "failed")
+                        + ", directory walk " + mMediaWalkTime + "ms");
+            }
+        }
+
+        /**
+         * Query the MediaStore on the pool, reporting back to this handler
+         * with {@link #MSG_MEDIA_QUERIED}.
+         */
+        private void submitMediaQuery(final ContentResolver resolver) {
+            final int generation = mGeneration;
+            final String[][] dirs = new String[mMediaQuerySizes.length][];
+            for (int i = 0; i < dirs.length; i++) {
+                dirs[i] = getMediaDirectories(i);
+            }
+            mPendingParts++;
+            sDirectoryExecutor.execute(new Runnable() {
+                public void run() {
+                    final long start = SystemClock.elapsedRealtime();
+                    final long[] sizes = new long[dirs.length];
+                    final boolean queried = queryMediaSizes(resolver, dirs, sizes);
+                    obtainMessage(MSG_MEDIA_QUERIED, new MediaQueryResult(generation,
+                            queried ? sizes : null, SystemClock.elapsedRealtime() - start))
+                            .sendToTarget();
+                }
+            });
+        }
+
+        private boolean isFullyMeasured() {
+            if (!mAppsMeasured || !mDownloadsMeasured || !mMiscMeasured) {
+                return false;
+            }
+            for (boolean measured : mMediaMeasured) {
+                if (!measured) return false;
+            }
+            return true;
+        }
+
+        private void publishMisc() {
+            // sort the list of FileInfo objects collected above in descending order of their sizes
+            Collections.sort(mPendingMiscInfo);
+            mFileInfoForMisc = mPendingMiscInfo;
+            mMiscSize = mPendingMiscSize;
+            // the list is still worth showing, but its total is short
+            mMiscMeasured = !mMiscFailed;
+        }
+
+        /**
+         * Queue measurement of all top level nodes except the ones already
+         * computed. Files are measured right away, directories on the pool.
+         */
+        private void measureSizesOfMisc(IMediaContainerService imcs) {
+            mPendingMiscInfo = new ArrayList<FileInfo>();
+            mPendingMiscSize = 0;
+            mPendingMisc = 0;
+            mMiscFailed = false;
+
+            File top = new File(mStorageVolume.getPath());
+            File[] files = top.listFiles();
+            if (files != null) {
+                final int len = files.length;
+                long counter = 0;
+                for (int i = 0; i < len; i++) {
+                    String path = files[i].getAbsolutePath();
+                    if (StorageVolumePreferenceCategory.sPathsExcludedForMisc.contains(path)) {
+                        continue;
+                    }
+                    if (files[i].isFile()) {
+                        final long fileSize = files[i].length();
+                        mPendingMiscInfo.add(new FileInfo(path, fileSize, counter++));
+                        mPendingMiscSize += fileSize;
+                    } else if (files[i].isDirectory()) {
+                        mPendingMisc++;
+                        submitDirectory(imcs, DirectoryResult.KIND_MISC, 0, path, counter++);
+                    } else {
+                        // Non directory, non file: not listed
+                    }
+                }
+            }
+
+            if (mPendingMisc == 0) {
+                publishMisc();
+            }
+        }
+
         /**
          * Request measurement of each package.
          *
@@ -317,9 +710,14 @@ public class StorageMeasurement {
         }
 
         private class StatsObserver extends IPackageStatsObserver.Stub {
+            private final int mObserverGeneration;
             private long mAppsSizeForThisStatsObserver = 0;
             private final List<String> mAppsList = new ArrayList<String>();
 
+            StatsObserver(int generation) {
+                mObserverGeneration = generation;
+            }
+
             public void onGetStatsCompleted(PackageStats stats, boolean succeeded) {
                 if (!mStatsObserver.equals(this)) {
                     // this callback's class object is no longer in use. ignore this callback.
@@ -347,7 +745,7 @@ public class StorageMeasurement {
                 }
 
                 mAppsSize = mAppsSizeForThisStatsObserver;
-                onInternalMeasurementComplete();
+                sendMessage(obtainMessage(MSG_APPS_MEASURED, mObserverGeneration, 0));
             }
 
             public void queuePackageMeasurementLocked(String packageName) {
@@ -363,6 +761,25 @@ public class StorageMeasurement {
             }
         }
 
+        /**
+         * Paths of the directories holding the given media category on this
+         * volume.
+         */
+        private String[] getMediaDirectories(int category) {
+            final StorageVolumePreferenceCategory.MediaCategory mediaCategory =
+                    StorageVolumePreferenceCategory.sMediaCategories[category];
+            if (mIsInternal) {
+                return new String[0];
+            } else if (mIsPrimary) {
+                return mediaCategory.mDirPaths;
+            }
+            final String[] dirs = new String[mediaCategory.mDirNames.length];
+            for (int i = 0; i < dirs.length; i++) {
+                dirs[i] = new File(getVolumePath(), mediaCategory.mDirNames[i]).getAbsolutePath();
+            }
+            return dirs;
+        }
+
         private void onInternalMeasurementComplete() {
             sendEmptyMessage(MSG_COMPLETED);
         }
@@ -386,65 +803,59 @@ public class StorageMeasurement {
                 return;
             }
 
-            // Media
-            for (int i = 0; i < StorageVolumePreferenceCategory.sMediaCategories.length; i++) {
-                if (mIsPrimary) {
-                    String[] dirs = StorageVolumePreferenceCategory.sMediaCategories[i].mDirPaths;
-                    final int length = dirs.length;
-                    mMediaSizes[i] = 0;
-                    for (int d = 0; d < length; d++) {
-                        final String path = dirs[d];
-                        mMediaSizes[i] += getDirectorySize(imcs, path);
-                    }
-                } else {
-                    // TODO Compute sizes using the MediaStore
-                    mMediaSizes[i] = 0;
-                }
+            // Everything below is measured in parallel, and streamed to the
+            // receiver as each part completes. Apps count as one part.
+            mGeneration++;
+            mPendingParts = 1;
+            mAppsMeasured = false;
+            mDownloadsMeasured = false;
+            mMiscMeasured = false;
+
+            // Media: the MediaStore is queried on one pool thread while the
+            // directories are walked on the others; its totals show as soon
+            // as they're in, and are checked against the walk
+            final int categoryCount = StorageVolumePreferenceCategory.sMediaCategories.length;
+            mMediaQueryDone = false;
+            mMediaQueried = false;
+            if (!mIsInternal) {
+                submitMediaQuery(context.getContentResolver());
+            } else {
+                mMediaQueryDone = true;
             }
-
-            /* Compute sizes using the media provider
-            // Media sizes are measured by the MediaStore. Query database.
-            ContentResolver contentResolver = context.getContentResolver();
-            // TODO "external" as a static String from MediaStore?
-            Uri audioUri = MediaStore.Files.getContentUri("external");
-            final String[] projection =
-                new String[] { "sum(" + MediaStore.Files.FileColumns.SIZE + ")" };
-            final String selection =
-                MediaStore.Files.FileColumns.STORAGE_ID + "=" +
-                Integer.toString(mStorageVolume.getStorageId()) + " AND " +
-                MediaStore.Files.FileColumns.MEDIA_TYPE + "=?";
-
-            for (int i = 0; i < StorageVolumePreferenceCategory.sMediaCategories.length; i++) {
+            mMediaWalkStart = SystemClock.elapsedRealtime();
+            mMediaWalkTime = 0;
+            mPendingMediaWalks = 0;
+            for (int i = 0; i < categoryCount; i++) {
                 mMediaSizes[i] = 0;
-                int mediaType = StorageVolumePreferenceCategory.sMediaCategories[i].mediaType;
-                Cursor c = null;
-                try {
-                    c = contentResolver.query(audioUri, projection, selection,
-                            new String[] { Integer.toString(mediaType) } , null);
-
-                    if (c != null && c.moveToNext()) {
-                        long size = c.getLong(0);
-                        mMediaSizes[i] = size;
-                    }
-                } finally {
-                    if (c != null) c.close();
+                mMediaWalkSizes[i] = 0;
+                mMediaWalkFailed[i] = false;
+                mPendingMedia[i] = 0;
+                mMediaMeasured[i] = true;
+                final String[] dirs = getMediaDirectories(i);
+                for (int d = 0; d < dirs.length; d++) {
+                    mPendingMedia[i]++;
+                    mPendingMediaWalks++;
+                    mMediaMeasured[i] = false;
+                    submitDirectory(imcs, DirectoryResult.KIND_MEDIA, i, dirs[d], 0);
                 }
             }
-             */
 
             // Downloads (primary volume only)
+            mDownloadsSize = 0;
             if (mIsPrimary) {
                 final String downloadsPath = Environment.getExternalStoragePublicDirectory(
                         Environment.DIRECTORY_DOWNLOADS).getAbsolutePath();
-                mDownloadsSize = getDirectorySize(imcs, downloadsPath);
+                submitDirectory(imcs, DirectoryResult.KIND_DOWNLOADS, 0, downloadsPath, 0);
             } else {
-                mDownloadsSize = 0;
+                mDownloadsMeasured = true;
             }
 
             // Misc
             mMiscSize = 0;
             if (mIsPrimary) {
                 measureSizesOfMisc(imcs);
+            } else {
+                mMiscMeasured = true;
             }
 
             // Apps
@@ -464,7 +875,7 @@ public class StorageMeasurement {
 
             if (apps != null && apps.size() > 0) {
                 // initiate measurement of all package sizes. need new StatsObserver object.
-                mStatsObserver = new StatsObserver();
+                mStatsObserver = new StatsObserver(mGeneration);
                 synchronized (mStatsObserver.mAppsList) {
                     for (int i = 0; i < apps.size(); i++) {
                         final ApplicationInfo info = apps.get(i);
@@ -476,17 +887,90 @@ public class StorageMeasurement {
                 // Sending of the message back to the MeasurementReceiver is
                 // completed in the PackageObserver
             } else {
-                onInternalMeasurementComplete();
+                mAppsSize = 0;
+                sendMessage(obtainMessage(MSG_APPS_MEASURED, mGeneration, 0));
             }
         }
     }
 
+    private String getVolumePath() {
+        return mStorageVolume != null
+                ? mStorageVolume.getPath() : Environment.getDataDirectory().getPath();
+    }
+
+    /**
+     * Sum the sizes of files the MediaStore knows in each group of
+     * directories on this volume, with a single aggregate query returning
+     * one column per group. Paths are matched exactly by prefix rather than
+     * with LIKE, which treats '_' as a wildcard and ignores case.
+     * Returns false if the MediaStore couldn't be queried.
+     */
+    private boolean queryMediaSizes(ContentResolver resolver, String[][] dirs, long[] sizes) {
+        final String data = MediaStore.Files.FileColumns.DATA;
+        final ArrayList<String> prefixes = new ArrayList<String>();
+        final StringBuilder selection = new StringBuilder();
+        final String[] projection = new String[dirs.length];
+        for (int i = 0; i < dirs.length; i++) {
+            final StringBuilder matches = new StringBuilder();
+            for (String dir : dirs[i]) {
+                final String prefix = dir + "/";
+                final String match = "substr(" + data + ",1," + prefix.length() + ")";
+                selection.append(selection.length() == 0 ? "(" : " OR ")
+                        .append(match).append("=?");
+                prefixes.add(prefix);
+                matches.append(matches.length() == 0 ? "" : " OR ")
+                        .append(match).append("=")
+                        .append(DatabaseUtils.sqlEscapeString(prefix));
+            }
+            projection[i] = matches.length() == 0 ? "0"
+                    : "sum(CASE WHEN " + matches + " THEN "
+                            + MediaStore.Files.FileColumns.SIZE + " ELSE 0 END)";
+        }
+        if (prefixes.isEmpty()) {
+            return false;
+        }
+        selection.append(") AND ").append(MediaStore.Files.FileColumns.STORAGE_ID)
+                .append("=").append(mStorageVolume.getStorageId())
+                .append(" AND ").append(MediaStore.Files.FileColumns.FORMAT)
+                .append("!=").append(MtpConstants.FORMAT_ASSOCIATION);
+
+        final Uri uri = MediaStore.Files.getContentUri("external");
+        Cursor c = null;
+        try {
+            c = resolver.query(uri, projection, selection.toString(),
+                    prefixes.toArray(new String[prefixes.size()]), null);
+            if (c == null || !c.moveToFirst()) {
+                return false;
+            }
+            for (int i = 0; i < dirs.length; i++) {
+                // null when nothing matched
+                sizes[i] = c.getLong(i);
+            }
+            return true;
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Could not query media sizes for " + getVolumePath(), e);
+            return false;
+        } finally {
+            if (c != null) c.close();
+        }
+    }
+
+    private static boolean isWithinTolerance(long queried, long walked) {
+        final long tolerance = Math.max(MEDIA_TOLERANCE_BYTES,
+                walked * MEDIA_TOLERANCE_PERCENT / 100);
+        return Math.abs(queried - walked) <= tolerance;
+    }
+
+    /**
+     * Returns the size of the given directory, or -1 if it couldn't be
+     * measured, such as after the container service went away.
+     */
     private long getDirectorySize(IMediaContainerService imcs, String dir) {
         try {
             return imcs.calculateDirectorySize(dir);
         } catch (Exception e) {
             Log.w(TAG, "Could not read memory from default container service for " + dir, e);
-            return 0;
+            return -1;
         }
     }
 
@@ -494,33 +978,46 @@ public class StorageMeasurement {
         return mMiscSize;
     }
 
-    private void measureSizesOfMisc(IMediaContainerService imcs) {
-        File top = new File(mStorageVolume.getPath());
-        mFileInfoForMisc = new ArrayList<FileInfo>();
-        File[] files = top.listFiles();
-        if (files == null) return;
-        final int len = files.length;
-        // Get sizes of all top level nodes except the ones already computed...
-        long counter = 0;
-        for (int i = 0; i < len; i++) {
-            String path = files[i].getAbsolutePath();
-            if (StorageVolumePreferenceCategory.sPathsExcludedForMisc.contains(path)) {
-                continue;
-            }
-            if (files[i].isFile()) {
-                final long fileSize = files[i].length();
-                mFileInfoForMisc.add(new FileInfo(path, fileSize, counter++));
-                mMiscSize += fileSize;
-            } else if (files[i].isDirectory()) {
-                final long dirSize = getDirectorySize(imcs, path);
-                mFileInfoForMisc.add(new FileInfo(path, dirSize, counter++));
-                mMiscSize += dirSize;
-            } else {
-                // Non directory, non file: not listed
-            }
+    /**
+     * Media category sizes from the MediaStore, or null if it couldn't be
+     * queried, posted back to the {@link MeasurementHandler}.
+     */
+    private static class MediaQueryResult {
+        final int mGeneration;
+        final long[] mSizes;
+        final long mTime;
+
+        MediaQueryResult(int generation, long[] sizes, long time) {
+            mGeneration = generation;
+            mSizes = sizes;
+            mTime = time;
+        }
+    }
+
+    /**
+     * Size of a directory measured on the pool, posted back to the
+     * {@link MeasurementHandler}.
+     */
+    private static class DirectoryResult {
+        static final int KIND_MEDIA = 0;
+        static final int KIND_DOWNLOADS = 1;
+        static final int KIND_MISC = 2;
+
+        final int mGeneration;
+        final int mKind;
+        final int mIndex;
+        final String mPath;
+        final long mSize;
+        final long mId;
+
+        DirectoryResult(int generation, int kind, int index, String path, long size, long id) {
+            mGeneration = generation;
+            mKind = kind;
+            mIndex = index;
+            mPath = path;
+            mSize = size;
+            mId = id;
         }
-        // sort the list of FileInfo objects collected above in descending order of their sizes
-        Collections.sort(mFileInfoForMisc);
     }
 
     static class FileInfo implements Comparable<FileInfo> {
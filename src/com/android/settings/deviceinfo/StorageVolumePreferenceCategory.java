@@ -89,11 +89,13 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory implemen
 
     static class MediaCategory {
         final String[] mDirPaths;
+        /** Directory names, relative to the root of any volume. */
+        final String[] mDirNames;
         final int mCategory;
-        //final int mMediaType;
 
         public MediaCategory(int category, String... directories) {
             mCategory = category;
+            mDirNames = directories;
             final int length = directories.length;
             mDirPaths = new String[length];
             for (int i = 0; i < length; i++) {
@@ -129,6 +131,9 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory implemen
     // Updates the memory usage bar graph.
     private static final int MSG_UI_UPDATE_EXACT = 2;
 
+    // Updates the memory usage bar graph with the sizes measured so far.
+    private static final int MSG_UI_UPDATE_PARTIAL = 3;
+
     private Handler mUpdateHandler = new Handler() {
         @Override
         public void handleMessage(Message msg) {
@@ -152,6 +157,13 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory implemen
                             mediaSizes);
                     break;
                 }
+                case MSG_UI_UPDATE_PARTIAL: {
+                    Bundle bundle = msg.getData();
+                    final long totalSize = bundle.getLong(StorageMeasurement.TOTAL_SIZE);
+                    final long availSize = bundle.getLong(StorageMeasurement.AVAIL_SIZE);
+                    updatePartial(totalSize, availSize, bundle);
+                    break;
+                }
             }
         }
     };
@@ -334,6 +346,54 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory implemen
         mUsageBarPreference.commit();
     }
 
+    /**
+     * Show the sizes measured so far; categories still being measured keep
+     * their summary and are left out of the bar graph. Once the measurement
+     * is finished, categories that couldn't be measured show as unavailable.
+     */
+    public void updatePartial(long totalSize, long availSize, Bundle bundle) {
+        final boolean finished = bundle.getBoolean(StorageMeasurement.MEASUREMENT_FINISHED);
+
+        mUsageBarPreference.clear();
+
+        if (bundle.containsKey(StorageMeasurement.APPS_USED)) {
+            updatePreference(bundle.getLong(StorageMeasurement.APPS_USED), totalSize,
+                    APPLICATIONS);
+        } else if (finished) {
+            setUnavailable(APPLICATIONS);
+        }
+
+        final long[] mediaSizes = bundle.getLongArray(StorageMeasurement.MEDIA_SIZES);
+        for (int i = 0; i < sMediaCategories.length; i++) {
+            if (mediaSizes != null && mediaSizes[i] >= 0) {
+                updatePreference(mediaSizes[i], totalSize, sMediaCategories[i].mCategory);
+            } else if (finished) {
+                setUnavailable(sMediaCategories[i].mCategory);
+            }
+        }
+
+        if (bundle.containsKey(StorageMeasurement.DOWNLOADS_SIZE)) {
+            updatePreference(bundle.getLong(StorageMeasurement.DOWNLOADS_SIZE), totalSize,
+                    DOWNLOADS);
+        } else if (finished) {
+            setUnavailable(DOWNLOADS);
+        }
+
+        if (bundle.containsKey(StorageMeasurement.MISC_SIZE)) {
+            updatePreference(bundle.getLong(StorageMeasurement.MISC_SIZE), totalSize, MISC);
+        } else if (finished) {
+            setUnavailable(MISC);
+        }
+
+        updatePreference(availSize, totalSize, AVAILABLE);
+
+        mUsageBarPreference.commit();
+    }
+
+    private void setUnavailable(int category) {
+        mPreferences[category].setSummary(R.string.status_unavailable);
+    }
+
     private void updatePreference(long size, long totalSize, int category) {
         if (size > 0) {
             mPreferences[category].setSummary(formatSize(size));
@@ -348,13 +408,23 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory implemen
         mMeasurement.measure();
     }
 
+    /**
+     * Measure again without reusing any directory sizes from earlier
+     * measurements.
+     */
+    public void rescan() {
+        mMeasurement.invalidateAll();
+        mMeasurement.measure();
+    }
+
     public void onResume() {
         mMeasurement.setReceiver(this);
         measure();
     }
 
     public void onStorageStateChanged() {
-        measure();
+        // Anything may have changed while the volume was away
+        rescan();
     }
 
     public void onMediaScannerFinished() {
@@ -384,6 +454,13 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory implemen
         mUpdateHandler.sendMessage(message);
     }
 
+    @Override
+    public void updatePartial(Bundle bundle) {
+        final Message message = mUpdateHandler.obtainMessage(MSG_UI_UPDATE_PARTIAL);
+        message.setData(bundle);
+        mUpdateHandler.sendMessage(message);
+    }
+
     @Override
     public void updateExact(Bundle bundle) {
         final Message message = mUpdateHandler.obtainMessage(MSG_UI_UPDATE_EXACT);
@@ -28,19 +28,66 @@ import android.net.INetworkStatsService;
 import android.net.NetworkStatsHistory;
 import android.net.NetworkTemplate;
 import android.os.Bundle;
+import android.os.Process;
 import android.os.RemoteException;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Loader for historical chart data for both network and UID details.
  */
 public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
+    private static final String TAG = "ChartDataLoader";
+
     private static final String KEY_TEMPLATE = "template";
     private static final String KEY_UIDS = "uids";
     private static final String KEY_FIELDS = "fields";
 
+    /** Most per-UID history requests that are in flight at once. */
+    private static final int MAX_PARALLEL_REQUESTS = 4;
+
+    private static final ThreadPoolExecutor sExecutor;
+
+    static {
+        final AtomicInteger count = new AtomicInteger();
+        sExecutor = new ThreadPoolExecutor(MAX_PARALLEL_REQUESTS, MAX_PARALLEL_REQUESTS,
+                1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    public Thread newThread(final Runnable r) {
+                        final Thread thread = new Thread("ChartDataLoader#"
+                                + count.incrementAndGet()) {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        };
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
     private final INetworkStatsService mStatsService;
+    private final NetworkHistoryCache mHistoryCache;
     private final Bundle mArgs;
 
+    /** Per-UID requests of the load in progress; protected by itself. */
+    private final ArrayList<Future<NetworkStatsHistory>> mPending =
+            new ArrayList<Future<NetworkStatsHistory>>();
+    /** Bumped on every cancel, so a load can tell it was canceled. */
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
     public static Bundle buildArgs(NetworkTemplate template, int[] uids) {
         return buildArgs(template, uids, FIELD_RX_BYTES | FIELD_TX_BYTES);
     }
@@ -54,8 +101,18 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
     }
 
     public ChartDataLoader(Context context, INetworkStatsService statsService, Bundle args) {
+        this(context, statsService, null, args);
+    }
+
+    /**
+     * Create loader that reads network history through the given
+     * {@link NetworkHistoryCache}, which may be {@code null}.
+     */
+    public ChartDataLoader(Context context, INetworkStatsService statsService,
+            NetworkHistoryCache historyCache, Bundle args) {
         super(context);
         mStatsService = statsService;
+        mHistoryCache = historyCache;
         mArgs = args;
     }
 
@@ -82,27 +139,107 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
 
     private ChartData loadInBackground(NetworkTemplate template, int[] uids, int fields)
             throws RemoteException {
-        final ChartData data = new ChartData();
-        data.network = mStatsService.getHistoryForNetwork(template, fields);
+        final int generation = mGeneration.get();
 
+        // start per-uid requests first, so they overlap with the network one
+        final ArrayList<Future<NetworkStatsHistory>> requests =
+                new ArrayList<Future<NetworkStatsHistory>>();
         if (uids != null) {
-            data.detailDefault = null;
-            data.detailForeground = null;
-
-            // load stats for current uid and template
-            for (int uid : uids) {
-                data.detailDefault = collectHistoryForUid(
-                        template, uid, SET_DEFAULT, data.detailDefault);
-                data.detailForeground = collectHistoryForUid(
-                        template, uid, SET_FOREGROUND, data.detailForeground);
+            synchronized (mPending) {
+                for (int uid : uids) {
+                    requests.add(sExecutor.submit(
+                            new HistoryRequest(template, uid, SET_DEFAULT, generation)));
+                    requests.add(sExecutor.submit(
+                            new HistoryRequest(template, uid, SET_FOREGROUND, generation)));
+                }
+                mPending.addAll(requests);
+            }
+        }
+
+        try {
+            final ChartData data = new ChartData();
+            if (mHistoryCache != null) {
+                data.network = mHistoryCache.load(mStatsService, template, fields);
+            } else {
+                data.network = mStatsService.getHistoryForNetwork(template, fields);
+            }
+
+            if (requests.size() > 0) {
+                // requests alternate between default and foreground sets
+                final NetworkStatsHistory[] histories = new NetworkStatsHistory[requests.size()];
+                int maxSize = 0;
+                for (int i = 0; i < histories.length; i++) {
+                    histories[i] = getResult(requests.get(i));
+                    if (histories[i] == null) return null;
+                    maxSize = Math.max(maxSize, histories[i].size());
+                }
+
+                // buckets are aligned, so the merged histories need no more
+                // buckets than the longest one.
+                final long bucketDuration = histories[histories.length - 1].getBucketDuration();
+                data.detailDefault = new NetworkStatsHistory(bucketDuration, maxSize);
+                data.detailForeground = new NetworkStatsHistory(bucketDuration, maxSize);
+                data.detail = new NetworkStatsHistory(bucketDuration, maxSize);
+                for (int i = 0; i < histories.length; i++) {
+                    final NetworkStatsHistory history = histories[i];
+                    if ((i & 1) == 0) {
+                        data.detailDefault.recordEntireHistory(history);
+                    } else {
+                        data.detailForeground.recordEntireHistory(history);
+                    }
+                    data.detail.recordEntireHistory(history);
+                }
+            }
+
+            return isCanceled(generation) ? null : data;
+        } finally {
+            synchronized (mPending) {
+                for (Future<NetworkStatsHistory> request : requests) {
+                    request.cancel(true);
+                }
+                mPending.removeAll(requests);
             }
+        }
+    }
+
+    private boolean isCanceled(int generation) {
+        return mGeneration.get() != generation;
+    }
 
-            data.detail = new NetworkStatsHistory(data.detailForeground.getBucketDuration());
-            data.detail.recordEntireHistory(data.detailDefault);
-            data.detail.recordEntireHistory(data.detailForeground);
+    /**
+     * Wait for the given request, returning {@code null} when it was
+     * canceled or skipped because the load was canceled.
+     */
+    private static NetworkStatsHistory getResult(Future<NetworkStatsHistory> request)
+            throws RemoteException {
+        try {
+            return request.get();
+        } catch (CancellationException e) {
+            return null;
+        } catch (InterruptedException e) {
+            return null;
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RemoteException) {
+                throw (RemoteException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else {
+                throw new RuntimeException(cause);
+            }
         }
+    }
 
-        return data;
+    @Override
+    public boolean cancelLoad() {
+        final boolean result = super.cancelLoad();
+        mGeneration.incrementAndGet();
+        synchronized (mPending) {
+            for (Future<NetworkStatsHistory> request : mPending) {
+                request.cancel(true);
+            }
+        }
+        return result;
     }
 
     @Override
@@ -118,19 +255,32 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
     }
 
     /**
-     * Collect {@link NetworkStatsHistory} for the requested UID, combining with
-     * an existing {@link NetworkStatsHistory} if provided.
+     * Request for the {@link NetworkStatsHistory} of a single UID and set.
      */
-    private NetworkStatsHistory collectHistoryForUid(
-            NetworkTemplate template, int uid, int set, NetworkStatsHistory existing)
-            throws RemoteException {
-        final NetworkStatsHistory history = mStatsService.getHistoryForUid(
-                template, uid, set, TAG_NONE, FIELD_RX_BYTES | FIELD_TX_BYTES);
+    private class HistoryRequest implements Callable<NetworkStatsHistory> {
+        private final NetworkTemplate mTemplate;
+        private final int mUid;
+        private final int mSet;
+        private final int mGeneration;
 
-        if (existing != null) {
-            existing.recordEntireHistory(history);
-            return existing;
-        } else {
+        public HistoryRequest(NetworkTemplate template, int uid, int set, int generation) {
+            mTemplate = template;
+            mUid = uid;
+            mSet = set;
+            mGeneration = generation;
+        }
+
+        public NetworkStatsHistory call() throws RemoteException {
+            if (isCanceled(mGeneration)) {
+                return null;
+            }
+            final long start = System.nanoTime();
+            final NetworkStatsHistory history = mStatsService.getHistoryForUid(
+                    mTemplate, mUid, mSet, TAG_NONE, FIELD_RX_BYTES | FIELD_TX_BYTES);
+            if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                Log.v(TAG, "history for uid " + mUid + " set " + mSet + " took "
+                        + (System.nanoTime() - start) / 1000000 + "ms");
+            }
             return history;
         }
     }
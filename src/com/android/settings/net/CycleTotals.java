@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import android.net.NetworkStatsHistory;
+
+import java.util.Arrays;
+
+/**
+ * Running totals over the buckets of a {@link NetworkStatsHistory}, so the
+ * usage of any number of ranges, such as every data usage cycle, can be read
+ * without walking the history again. Partial buckets are counted in
+ * proportion to their overlap, like {@link NetworkStatsHistory#getValues}.
+ */
+public class CycleTotals {
+    private NetworkStatsHistory mHistory;
+    private long mBucketDuration;
+
+    private long[] mBucketStarts = new long[0];
+    /** Total of all buckets before index; one longer than bucket count. */
+    private long[] mPrefix = new long[1];
+    private int mSize;
+
+    /**
+     * Bind the given history, or {@code null} to clear. When it continues the
+     * one already bound, as when only tail buckets were refreshed, existing
+     * totals before the previous last bucket are kept.
+     */
+    public void bind(NetworkStatsHistory history) {
+        if (history == mHistory) return;
+
+        int reuse = 0;
+        if (history != null && mHistory != null && mSize > 0
+                && history.getBucketDuration() == mBucketDuration
+                && history.size() >= mSize - 1) {
+            // historic buckets don't change; only the last may have grown
+            NetworkStatsHistory.Entry entry = history.getValues(0, null);
+            if (entry.bucketStart == mBucketStarts[0]) {
+                reuse = mSize - 1;
+                if (reuse > 0) {
+                    entry = history.getValues(reuse - 1, entry);
+                    if (entry.bucketStart != mBucketStarts[reuse - 1]) {
+                        reuse = 0;
+                    }
+                }
+            }
+        }
+
+        mHistory = history;
+        mSize = history != null ? history.size() : 0;
+        mBucketDuration = history != null ? history.getBucketDuration() : 0;
+        if (mBucketStarts.length < mSize) {
+            final int capacity = Math.max(mSize, mBucketStarts.length * 2);
+            mBucketStarts = Arrays.copyOf(mBucketStarts, capacity);
+            mPrefix = Arrays.copyOf(mPrefix, capacity + 1);
+        }
+
+        NetworkStatsHistory.Entry entry = null;
+        for (int i = reuse; i < mSize; i++) {
+            entry = history.getValues(i, entry);
+            mBucketStarts[i] = entry.bucketStart;
+            mPrefix[i + 1] = mPrefix[i] + entry.rxBytes + entry.txBytes;
+        }
+    }
+
+    /**
+     * Return total bytes between the given times.
+     */
+    public long getTotal(long start, long end) {
+        if (end <= start) return 0;
+        return getTotalBefore(end) - getTotalBefore(start);
+    }
+
+    /**
+     * Return total bytes before the given time.
+     */
+    private long getTotalBefore(long time) {
+        if (mSize == 0) return 0;
+
+        int index = Arrays.binarySearch(mBucketStarts, 0, mSize, time);
+        if (index < 0) {
+            // last bucket starting before time
+            index = -index - 2;
+        }
+        if (index < 0) return 0;
+
+        final long offset = time - mBucketStarts[index];
+        final long bucketTotal = mPrefix[index + 1] - mPrefix[index];
+        if (offset >= mBucketDuration) {
+            return mPrefix[index + 1];
+        } else {
+            return mPrefix[index] + bucketTotal * offset / mBucketDuration;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import java.util.Arrays;
+
+/**
+ * Sums {@code long} values by {@code int} key, such as bytes by UID, without
+ * allocating per key. Keys are found through an open-addressing table with
+ * linear probing, and kept in insertion order in parallel arrays so they can
+ * be iterated by index.
+ */
+public class IntLongAccumulator {
+    /** Slot of {@link #mTable} holds index into {@link #mKeys} plus one. */
+    private int[] mTable;
+    private int[] mKeys;
+    private long[] mValues;
+    private int mSize;
+
+    public IntLongAccumulator() {
+        this(16);
+    }
+
+    public IntLongAccumulator(int expectedSize) {
+        int capacity = 16;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        mTable = new int[capacity];
+        mKeys = new int[capacity / 2];
+        mValues = new long[capacity / 2];
+    }
+
+    private static int hash(int key) {
+        // spread sequential uids across the table
+        final int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Return index of the given key, or {@code -1} when not present.
+     */
+    public int indexOfKey(int key) {
+        final int mask = mTable.length - 1;
+        int slot = hash(key) & mask;
+        while (true) {
+            final int index = mTable[slot] - 1;
+            if (index < 0) return -1;
+            if (mKeys[index] == key) return index;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Add the given value to the total for the key, starting at zero for
+     * keys not seen before. Returns index of the key.
+     */
+    public int add(int key, long value) {
+        final int mask = mTable.length - 1;
+        int slot = hash(key) & mask;
+        while (true) {
+            final int index = mTable[slot] - 1;
+            if (index < 0) break;
+            if (mKeys[index] == key) {
+                mValues[index] += value;
+                return index;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        final int index = mSize++;
+        if (index == mKeys.length) {
+            mKeys = Arrays.copyOf(mKeys, index * 2);
+            mValues = Arrays.copyOf(mValues, index * 2);
+        }
+        mKeys[index] = key;
+        mValues[index] = value;
+        mTable[slot] = index + 1;
+        if (mSize * 2 > mTable.length) {
+            rehash(mTable.length * 2);
+        }
+        return index;
+    }
+
+    /**
+     * Return total for the given key, or {@code 0} when not present.
+     */
+    public long get(int key) {
+        final int index = indexOfKey(key);
+        return index >= 0 ? mValues[index] : 0;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int keyAt(int index) {
+        return mKeys[index];
+    }
+
+    public long valueAt(int index) {
+        return mValues[index];
+    }
+
+    /**
+     * Forget all keys, keeping allocated storage for reuse.
+     */
+    public void clear() {
+        Arrays.fill(mTable, 0);
+        mSize = 0;
+    }
+
+    private void rehash(int capacity) {
+        final int[] table = new int[capacity];
+        final int mask = capacity - 1;
+        for (int i = 0; i < mSize; i++) {
+            int slot = hash(mKeys[i]) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = i + 1;
+        }
+        mTable = table;
+    }
+}
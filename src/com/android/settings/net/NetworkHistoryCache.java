@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import android.net.INetworkStatsService;
+import android.net.NetworkStats;
+import android.net.NetworkStatsHistory;
+import android.net.NetworkTemplate;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of {@link NetworkStatsHistory} per {@link NetworkTemplate}. Buckets
+ * before the most recent one don't change once written, so after the first
+ * load of a template only the buckets from the last loaded one onwards are
+ * requested, each as a summary over exactly that bucket, and merged into a
+ * copy of the cached history.
+ * <p>
+ * Cached histories are never modified once returned, so they can be bound
+ * to UI while a refresh happens in the background.
+ */
+public class NetworkHistoryCache {
+    private static final String TAG = "NetworkHistoryCache";
+    private static final boolean LOGD = false;
+
+    /** Most templates kept; least recently used are evicted first. */
+    private static final int MAX_TEMPLATES = 4;
+    /** Past this many buckets, a full load is cheaper than a tail refresh. */
+    private static final int MAX_TAIL_BUCKETS = 8;
+
+    private static class CachedHistory {
+        public final NetworkStatsHistory history;
+        public final int fields;
+
+        public CachedHistory(NetworkStatsHistory history, int fields) {
+            this.history = history;
+            this.fields = fields;
+        }
+    }
+
+    private final LinkedHashMap<NetworkTemplate, CachedHistory> mCache =
+            new LinkedHashMap<NetworkTemplate, CachedHistory>(MAX_TEMPLATES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<NetworkTemplate, CachedHistory> eldest) {
+                    return size() > MAX_TEMPLATES;
+                }
+            };
+
+    /**
+     * Return last loaded history for the given template, if any, without
+     * touching the stats service.
+     */
+    public synchronized NetworkStatsHistory getCached(NetworkTemplate template) {
+        final CachedHistory cached = mCache.get(template);
+        return cached != null ? cached.history : null;
+    }
+
+    public synchronized void clear() {
+        mCache.clear();
+    }
+
+    /**
+     * Load history for the given template, only requesting buckets newer
+     * than those already cached when possible.
+     */
+    public NetworkStatsHistory load(
+            INetworkStatsService statsService, NetworkTemplate template, int fields)
+            throws RemoteException {
+        final CachedHistory cached;
+        synchronized (this) {
+            cached = mCache.get(template);
+        }
+
+        NetworkStatsHistory history = null;
+        if (cached != null && cached.fields == fields && cached.history.size() > 0) {
+            history = refreshTail(statsService, template, cached);
+        }
+        if (history == null) {
+            if (LOGD) Log.d(TAG, "full load for " + template);
+            history = statsService.getHistoryForNetwork(template, fields);
+        }
+
+        synchronized (this) {
+            mCache.put(template, new CachedHistory(history, fields));
+        }
+        return history;
+    }
+
+    /**
+     * Build a copy of the cached history with its last bucket and anything
+     * after it reloaded. Returns {@code null} when too far behind to be worth
+     * doing incrementally.
+     */
+    private static NetworkStatsHistory refreshTail(
+            INetworkStatsService statsService, NetworkTemplate template, CachedHistory cached)
+            throws RemoteException {
+        final NetworkStatsHistory old = cached.history;
+        final long bucketDuration = old.getBucketDuration();
+        final int lastIndex = old.size() - 1;
+
+        NetworkStatsHistory.Entry bucket = old.getValues(lastIndex, null);
+        final long tailStart = bucket.bucketStart;
+        final long now = System.currentTimeMillis();
+        final int tailBuckets = (int) ((now - tailStart) / bucketDuration) + 1;
+        if (tailBuckets > MAX_TAIL_BUCKETS) {
+            return null;
+        }
+
+        final NetworkStatsHistory history = new NetworkStatsHistory(
+                bucketDuration, lastIndex + tailBuckets, cached.fields);
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        for (int i = 0; i < lastIndex; i++) {
+            bucket = old.getValues(i, bucket);
+            entry.rxBytes = bucket.rxBytes;
+            entry.rxPackets = bucket.rxPackets;
+            entry.txBytes = bucket.txBytes;
+            entry.txPackets = bucket.txPackets;
+            entry.operations = bucket.operations;
+            history.recordData(bucket.bucketStart, bucket.bucketStart + bucketDuration, entry);
+        }
+
+        NetworkStats.Entry total = null;
+        for (long start = tailStart; start <= now; start += bucketDuration) {
+            final NetworkStats summary = statsService.getSummaryForNetwork(
+                    template, start, start + bucketDuration);
+            total = summary.getTotal(total);
+            history.recordData(start, start + bucketDuration, total);
+        }
+
+        if (LOGD) Log.d(TAG, "refreshed " + tailBuckets + " tail buckets for " + template);
+        return history;
+    }
+}
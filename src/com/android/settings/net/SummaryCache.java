@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import android.net.INetworkStatsService;
+import android.net.NetworkStats;
+import android.net.NetworkTemplate;
+import android.os.Process;
+import android.os.RemoteException;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.google.android.collect.Sets;
+import com.google.common.base.Objects;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * LRU of per-UID summary {@link NetworkStats}, keyed by template and range,
+ * so flipping between cycles doesn't reload them. Neighboring ranges can be
+ * prefetched on a low priority background thread.
+ */
+public class SummaryCache {
+    private static final String TAG = "SummaryCache";
+    private static final boolean LOGD = false;
+
+    /** Most summaries kept; each holds one entry per UID and set. */
+    private static final int MAX_SUMMARIES = 8;
+
+    private static final ExecutorService sPrefetchExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                public Thread newThread(final Runnable r) {
+                    final Thread thread = new Thread("SummaryCache") {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+                            r.run();
+                        }
+                    };
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private static class Key {
+        public final NetworkTemplate template;
+        public final long start;
+        public final long end;
+
+        public Key(NetworkTemplate template, long start, long end) {
+            this.template = template;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(template, start, end);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof Key) {
+                final Key another = (Key) obj;
+                return start == another.start && end == another.end
+                        && Objects.equal(template, another.template);
+            }
+            return false;
+        }
+    }
+
+    private static class Summary {
+        public final NetworkStats stats;
+        /** Time loaded; ranges ending after this may still grow. */
+        public final long loadedTime;
+
+        public Summary(NetworkStats stats, long loadedTime) {
+            this.stats = stats;
+            this.loadedTime = loadedTime;
+        }
+    }
+
+    private final LruCache<Key, Summary> mCache = new LruCache<Key, Summary>(MAX_SUMMARIES);
+
+    /** Ranges being prefetched; protected by itself. */
+    private final HashSet<Key> mPrefetching = Sets.newHashSet();
+
+    public NetworkStats get(NetworkTemplate template, long start, long end) {
+        final Summary summary = mCache.get(new Key(template, start, end));
+        return summary != null ? summary.stats : null;
+    }
+
+    public void put(NetworkTemplate template, long start, long end, NetworkStats stats) {
+        if (stats == null) return;
+        mCache.put(new Key(template, start, end), new Summary(stats, System.currentTimeMillis()));
+    }
+
+    /**
+     * Drop summaries whose range was still open when loaded, such as the
+     * current cycle, so they are reloaded after stats are updated.
+     */
+    public void invalidateLive() {
+        final Iterator<Map.Entry<Key, Summary>> it = mCache.snapshot().entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<Key, Summary> entry = it.next();
+            if (entry.getKey().end > entry.getValue().loadedTime) {
+                mCache.remove(entry.getKey());
+            }
+        }
+    }
+
+    public void clear() {
+        mCache.evictAll();
+    }
+
+    /**
+     * Load summary for the given range in the background, unless already
+     * cached or being loaded.
+     */
+    public void prefetch(final INetworkStatsService statsService, final NetworkTemplate template,
+            final long start, final long end) {
+        final Key key = new Key(template, start, end);
+        if (mCache.get(key) != null) return;
+        synchronized (mPrefetching) {
+            if (!mPrefetching.add(key)) return;
+        }
+
+        sPrefetchExecutor.execute(new Runnable() {
+            public void run() {
+                try {
+                    if (mCache.get(key) == null) {
+                        if (LOGD) Log.d(TAG, "prefetching " + template + " " + start + "-" + end);
+                        put(template, start, end,
+                                statsService.getSummaryForAllUid(template, start, end, false));
+                    }
+                } catch (RemoteException e) {
+                    Log.w(TAG, "problem prefetching summary", e);
+                } finally {
+                    synchronized (mPrefetching) {
+                        mPrefetching.remove(key);
+                    }
+                }
+            }
+        });
+    }
+}
@@ -30,6 +30,7 @@ public class SummaryForAllUidLoader extends AsyncTaskLoader<NetworkStats> {
     private static final String KEY_END = "end";
 
     private final INetworkStatsService mStatsService;
+    private final SummaryCache mSummaryCache;
     private final Bundle mArgs;
 
     public static Bundle buildArgs(NetworkTemplate template, long start, long end) {
@@ -42,8 +43,18 @@ public class SummaryForAllUidLoader extends AsyncTaskLoader<NetworkStats> {
 
     public SummaryForAllUidLoader(
             Context context, INetworkStatsService statsService, Bundle args) {
+        this(context, statsService, null, args);
+    }
+
+    /**
+     * Create loader that reads through, and fills, the given
+     * {@link SummaryCache}, which may be {@code null}.
+     */
+    public SummaryForAllUidLoader(Context context, INetworkStatsService statsService,
+            SummaryCache summaryCache, Bundle args) {
         super(context);
         mStatsService = statsService;
+        mSummaryCache = summaryCache;
         mArgs = args;
     }
 
@@ -59,8 +70,18 @@ public class SummaryForAllUidLoader extends AsyncTaskLoader<NetworkStats> {
         final long start = mArgs.getLong(KEY_START);
         final long end = mArgs.getLong(KEY_END);
 
+        if (mSummaryCache != null) {
+            final NetworkStats cached = mSummaryCache.get(template, start, end);
+            if (cached != null) return cached;
+        }
+
         try {
-            return mStatsService.getSummaryForAllUid(template, start, end, false);
+            final NetworkStats stats = mStatsService.getSummaryForAllUid(
+                    template, start, end, false);
+            if (mSummaryCache != null) {
+                mSummaryCache.put(template, start, end, stats);
+            }
+            return stats;
         } catch (RemoteException e) {
             return null;
         }
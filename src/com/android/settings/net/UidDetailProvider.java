@@ -22,98 +22,247 @@ import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
 import android.net.ConnectivityManager;
 import android.net.TrafficStats;
 import android.text.TextUtils;
-import android.util.SparseArray;
+import android.util.LruCache;
 
 import com.android.settings.R;
 import com.android.settings.Utils;
 
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Provides {@link UidDetail} for UIDs. Labels come from a persistent
+ * {@link UidLabelCache} shared across sessions, and icons from a
+ * size-bounded LRU local to this provider. Concurrent requests for the same
+ * UID wait on a single load.
+ */
 public class UidDetailProvider {
+    /** Most bytes of icons kept in memory. */
+    private static final int ICON_CACHE_BYTES = 1024 * 1024;
+
     private final Context mContext;
-    private final SparseArray<UidDetail> mUidDetailCache;
+    private final UidLabelCache mLabelCache;
+    private final LruCache<Integer, Drawable> mIconCache;
+
+    /** Loads in progress, so duplicate requests can wait on them. */
+    private final ConcurrentHashMap<Integer, FutureTask<UidDetail>> mLoading =
+            new ConcurrentHashMap<Integer, FutureTask<UidDetail>>();
+
+    /**
+     * Last update time by package, from one snapshot of installed packages,
+     * so checking persisted labels needs no call per package. Taken again
+     * after packages change.
+     */
+    private HashMap<String, Long> mUpdateTimes;
+    private int mUpdateTimesGeneration;
 
     public UidDetailProvider(Context context) {
         mContext = context.getApplicationContext();
-        mUidDetailCache = new SparseArray<UidDetail>();
+        mLabelCache = UidLabelCache.get(mContext);
+        mIconCache = new LruCache<Integer, Drawable>(ICON_CACHE_BYTES) {
+            @Override
+            protected int sizeOf(Integer uid, Drawable icon) {
+                return getIconBytes(icon);
+            }
+        };
     }
 
-    public synchronized void clearCache() {
-        mUidDetailCache.clear();
+    private static int getIconBytes(Drawable icon) {
+        if (icon instanceof BitmapDrawable) {
+            final Bitmap bitmap = ((BitmapDrawable) icon).getBitmap();
+            if (bitmap != null) {
+                return bitmap.getRowBytes() * bitmap.getHeight();
+            }
+        }
+        return Math.max(icon.getIntrinsicWidth(), 1) * Math.max(icon.getIntrinsicHeight(), 1) * 4;
+    }
+
+    /**
+     * Drop icons held by this provider, and persist any newly loaded labels.
+     * Labels stay cached for later sessions.
+     */
+    public void clearCache() {
+        mIconCache.evictAll();
+        mLabelCache.flush();
+        synchronized (this) {
+            mUpdateTimes = null;
+        }
+    }
+
+    private synchronized HashMap<String, Long> getUpdateTimes(PackageManager pm) {
+        final int generation = mLabelCache.getPackageGeneration();
+        if (mUpdateTimes == null || mUpdateTimesGeneration != generation) {
+            final List<PackageInfo> packages = pm.getInstalledPackages(0);
+            mUpdateTimes = new HashMap<String, Long>(packages.size());
+            for (PackageInfo info : packages) {
+                mUpdateTimes.put(info.packageName, info.lastUpdateTime);
+            }
+            mUpdateTimesGeneration = generation;
+        }
+        return mUpdateTimes;
     }
 
     /**
      * Resolve best descriptive label for the given UID.
      */
-    public synchronized UidDetail getUidDetail(int uid, boolean blocking) {
-        final UidDetail cached = mUidDetailCache.get(uid);
-        if (cached != null) {
-            return cached;
+    public UidDetail getUidDetail(final int uid, boolean blocking) {
+        final UidLabelCache.Entry cachedLabel = mLabelCache.get(uid);
+        final Drawable cachedIcon = mIconCache.get(uid);
+        if (cachedLabel != null && cachedIcon != null) {
+            return buildDetail(cachedLabel, cachedIcon);
         } else if (!blocking) {
             return null;
         }
 
-        final Resources res = mContext.getResources();
-        final PackageManager pm = mContext.getPackageManager();
+        FutureTask<UidDetail> task = mLoading.get(uid);
+        if (task == null) {
+            final FutureTask<UidDetail> newTask = new FutureTask<UidDetail>(
+                    new Callable<UidDetail>() {
+                        public UidDetail call() {
+                            return loadUidDetail(uid);
+                        }
+                    });
+            task = mLoading.putIfAbsent(uid, newTask);
+            if (task == null) {
+                task = newTask;
+                try {
+                    newTask.run();
+                } finally {
+                    mLoading.remove(uid, newTask);
+                }
+            }
+        }
+
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            // load ourselves rather than leave caller without detail
+            return loadUidDetail(uid);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else {
+                throw new RuntimeException(cause);
+            }
+        }
+    }
 
+    private static UidDetail buildDetail(UidLabelCache.Entry label, Drawable icon) {
         final UidDetail detail = new UidDetail();
-        detail.label = pm.getNameForUid(uid);
-        detail.icon = pm.getDefaultActivityIcon();
+        detail.label = label.label;
+        detail.detailLabels = label.detailLabels;
+        detail.icon = icon;
+        return detail;
+    }
+
+    private UidDetail loadUidDetail(int uid) {
+        final PackageManager pm = mContext.getPackageManager();
+        final UidLabelCache.Entry label = loadLabel(uid);
+
+        Drawable icon = mIconCache.get(uid);
+        if (icon == null) {
+            icon = pm.getDefaultActivityIcon();
+            if (label.iconPackage != null) {
+                try {
+                    icon = pm.getApplicationIcon(label.iconPackage);
+                } catch (NameNotFoundException e) {
+                }
+            }
+            mIconCache.put(uid, icon);
+        }
+
+        return buildDetail(label, icon);
+    }
+
+    private UidLabelCache.Entry loadLabel(int uid) {
+        final Resources res = mContext.getResources();
+        final PackageManager pm = mContext.getPackageManager();
 
         // handle special case labels
         switch (uid) {
             case android.os.Process.SYSTEM_UID:
-                detail.label = res.getString(R.string.process_kernel_label);
-                detail.icon = pm.getDefaultActivityIcon();
-                mUidDetailCache.put(uid, detail);
-                return detail;
+                return putLabel(uid, res.getString(R.string.process_kernel_label));
             case TrafficStats.UID_REMOVED:
-                detail.label = res.getString(R.string.data_usage_uninstalled_apps);
-                detail.icon = pm.getDefaultActivityIcon();
-                mUidDetailCache.put(uid, detail);
-                return detail;
+                return putLabel(uid, res.getString(R.string.data_usage_uninstalled_apps));
             case TrafficStats.UID_TETHERING:
                 final ConnectivityManager cm = (ConnectivityManager) mContext.getSystemService(
                         Context.CONNECTIVITY_SERVICE);
-                detail.label = res.getString(Utils.getTetheringLabel(cm));
-                detail.icon = pm.getDefaultActivityIcon();
-                mUidDetailCache.put(uid, detail);
-                return detail;
+                return putLabel(uid, res.getString(Utils.getTetheringLabel(cm)));
         }
 
-        // otherwise fall back to using packagemanager labels
+        // otherwise fall back to using packagemanager labels, unless the
+        // packages are unchanged since they were last loaded.
         final String[] packageNames = pm.getPackagesForUid(uid);
         final int length = packageNames != null ? packageNames.length : 0;
 
+        final HashMap<String, Long> updateTimes = length > 0 ? getUpdateTimes(pm) : null;
+        long fingerprint = length;
+        for (int i = 0; i < length; i++) {
+            final Long updateTime = updateTimes.get(packageNames[i]);
+            if (updateTime == null) {
+                // package unknown to our snapshot; don't trust the cache
+                fingerprint = -1;
+                break;
+            }
+            fingerprint = 31 * fingerprint + packageNames[i].hashCode();
+            fingerprint = 31 * fingerprint + updateTime;
+        }
+
+        if (fingerprint != -1) {
+            final UidLabelCache.Entry persisted = mLabelCache.get(uid, fingerprint);
+            if (persisted != null) return persisted;
+        }
+
+        CharSequence label = pm.getNameForUid(uid);
+        CharSequence[] detailLabels = null;
+        String iconPackage = null;
         try {
             if (length == 1) {
                 final ApplicationInfo info = pm.getApplicationInfo(packageNames[0], 0);
-                detail.label = info.loadLabel(pm).toString();
-                detail.icon = info.loadIcon(pm);
+                label = info.loadLabel(pm).toString();
+                iconPackage = packageNames[0];
             } else if (length > 1) {
-                detail.detailLabels = new CharSequence[length];
+                detailLabels = new CharSequence[length];
                 for (int i = 0; i < length; i++) {
                     final String packageName = packageNames[i];
                     final PackageInfo packageInfo = pm.getPackageInfo(packageName, 0);
                     final ApplicationInfo appInfo = pm.getApplicationInfo(packageName, 0);
 
-                    detail.detailLabels[i] = appInfo.loadLabel(pm).toString();
+                    detailLabels[i] = appInfo.loadLabel(pm).toString();
                     if (packageInfo.sharedUserLabel != 0) {
-                        detail.label = pm.getText(packageName, packageInfo.sharedUserLabel,
+                        label = pm.getText(packageName, packageInfo.sharedUserLabel,
                                 packageInfo.applicationInfo).toString();
-                        detail.icon = appInfo.loadIcon(pm);
+                        iconPackage = packageName;
                     }
                 }
             }
         } catch (NameNotFoundException e) {
         }
 
-        if (TextUtils.isEmpty(detail.label)) {
-            detail.label = Integer.toString(uid);
+        if (TextUtils.isEmpty(label)) {
+            label = Integer.toString(uid);
         }
 
-        mUidDetailCache.put(uid, detail);
-        return detail;
+        final UidLabelCache.Entry entry = new UidLabelCache.Entry(
+                label, detailLabels, iconPackage, fingerprint);
+        mLabelCache.put(uid, entry, fingerprint != -1 && length > 0);
+        return entry;
+    }
+
+    private UidLabelCache.Entry putLabel(int uid, CharSequence label) {
+        final UidLabelCache.Entry entry = new UidLabelCache.Entry(label, null, null, 0);
+        mLabelCache.put(uid, entry, false);
+        return entry;
     }
 }
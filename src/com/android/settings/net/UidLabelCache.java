@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.text.TextUtils;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process-wide cache of UID labels, backed by {@link SharedPreferences} so
+ * they survive across sessions. Persisted labels are only used while the
+ * fingerprint of the packages behind the UID matches, and are dropped when
+ * the locale changes. Package broadcasts invalidate labels in memory.
+ * Labels are written in batches on a background thread shortly after they
+ * are loaded.
+ */
+class UidLabelCache {
+    private static final String PREF_FILE = "uid_labels";
+    private static final String KEY_LOCALE = "locale";
+    private static final char SEPARATOR = '\n';
+
+    /** Delay before writing labels loaded since the last write. */
+    private static final long FLUSH_DELAY_MS = 2000;
+    /** Pending labels that trigger a write right away. */
+    private static final int FLUSH_BATCH = 32;
+
+    private static final int MSG_FLUSH = 1;
+
+    private static UidLabelCache sInstance;
+
+    public static class Entry {
+        public final CharSequence label;
+        public final CharSequence[] detailLabels;
+        /** Package providing the icon, or {@code null} for the default. */
+        public final String iconPackage;
+        public final long fingerprint;
+
+        public Entry(CharSequence label, CharSequence[] detailLabels, String iconPackage,
+                long fingerprint) {
+            this.label = label;
+            this.detailLabels = detailLabels;
+            this.iconPackage = iconPackage;
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    private final Context mContext;
+    private final ConcurrentHashMap<Integer, Entry> mLabels =
+            new ConcurrentHashMap<Integer, Entry>();
+
+    /** Entries waiting to be written by {@link #flush()}; protected by itself. */
+    private final HashMap<String, String> mPendingWrites = new HashMap<String, String>();
+
+    private SharedPreferences mPrefs;
+
+    /** Bumped on every package change, so callers can drop package state. */
+    private volatile int mPackageGeneration;
+
+    private final Handler mFlushHandler;
+
+    public static synchronized UidLabelCache get(Context context) {
+        if (sInstance == null) {
+            sInstance = new UidLabelCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private UidLabelCache(Context context) {
+        mContext = context;
+
+        final HandlerThread thread = new HandlerThread(
+                "UidLabelCache", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mFlushHandler = new Handler(thread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MSG_FLUSH) {
+                    flush();
+                }
+            }
+        };
+
+        final IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addDataScheme("package");
+        context.registerReceiver(mPackageReceiver, packageFilter);
+        context.registerReceiver(
+                mLocaleReceiver, new IntentFilter(Intent.ACTION_LOCALE_CHANGED));
+    }
+
+    /**
+     * Return label already in memory for the given UID, if any.
+     */
+    public Entry get(int uid) {
+        return mLabels.get(uid);
+    }
+
+    /**
+     * Return label for the given UID from memory, or from storage when its
+     * fingerprint matches. May touch storage, so don't call from the UI
+     * thread.
+     */
+    public Entry get(int uid, long fingerprint) {
+        final Entry cached = mLabels.get(uid);
+        if (cached != null && cached.fingerprint == fingerprint) {
+            return cached;
+        }
+
+        final String value = getPrefs().getString(Integer.toString(uid), null);
+        if (value == null) return null;
+
+        final String[] parts = TextUtils.split(value, String.valueOf(SEPARATOR));
+        if (parts.length < 3) return null;
+        try {
+            if (Long.parseLong(parts[0]) != fingerprint) return null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+
+        final String iconPackage = parts[1].length() > 0 ? parts[1] : null;
+        CharSequence[] detailLabels = null;
+        if (parts.length > 3) {
+            detailLabels = new CharSequence[parts.length - 3];
+            System.arraycopy(parts, 3, detailLabels, 0, detailLabels.length);
+        }
+        final Entry entry = new Entry(parts[2], detailLabels, iconPackage, fingerprint);
+        mLabels.put(uid, entry);
+        return entry;
+    }
+
+    /**
+     * Remember label for the given UID, optionally persisting it on the next
+     * {@link #flush()}.
+     */
+    public void put(int uid, Entry entry, boolean persist) {
+        mLabels.put(uid, entry);
+        if (!persist) return;
+
+        final StringBuilder builder = new StringBuilder();
+        builder.append(entry.fingerprint).append(SEPARATOR);
+        if (entry.iconPackage != null) {
+            builder.append(entry.iconPackage);
+        }
+        builder.append(SEPARATOR).append(clean(entry.label));
+        if (entry.detailLabels != null) {
+            for (CharSequence detailLabel : entry.detailLabels) {
+                builder.append(SEPARATOR).append(clean(detailLabel));
+            }
+        }
+        final int pending;
+        synchronized (mPendingWrites) {
+            mPendingWrites.put(Integer.toString(uid), builder.toString());
+            pending = mPendingWrites.size();
+        }
+        if (pending >= FLUSH_BATCH) {
+            mFlushHandler.removeMessages(MSG_FLUSH);
+            mFlushHandler.sendEmptyMessage(MSG_FLUSH);
+        } else if (!mFlushHandler.hasMessages(MSG_FLUSH)) {
+            mFlushHandler.sendEmptyMessageDelayed(MSG_FLUSH, FLUSH_DELAY_MS);
+        }
+    }
+
+    /**
+     * Return a value that changes whenever a package is added, changed or
+     * removed.
+     */
+    public int getPackageGeneration() {
+        return mPackageGeneration;
+    }
+
+    private static String clean(CharSequence label) {
+        return label.toString().replace(SEPARATOR, ' ');
+    }
+
+    public void invalidate(int uid) {
+        mLabels.remove(uid);
+        synchronized (mPendingWrites) {
+            mPendingWrites.remove(Integer.toString(uid));
+        }
+    }
+
+    /**
+     * Write labels remembered since the last flush in a single batch. Called
+     * on a background thread as labels are loaded; may also be called
+     * directly.
+     */
+    public void flush() {
+        final HashMap<String, String> writes;
+        synchronized (mPendingWrites) {
+            if (mPendingWrites.isEmpty()) return;
+            writes = new HashMap<String, String>(mPendingWrites);
+            mPendingWrites.clear();
+        }
+
+        final SharedPreferences.Editor editor = getPrefs().edit();
+        for (Map.Entry<String, String> write : writes.entrySet()) {
+            editor.putString(write.getKey(), write.getValue());
+        }
+        editor.apply();
+    }
+
+    private synchronized SharedPreferences getPrefs() {
+        if (mPrefs == null) {
+            mPrefs = mContext.getSharedPreferences(PREF_FILE, Context.MODE_PRIVATE);
+
+            // persisted labels are only good for the locale they were loaded in
+            final String locale = Locale.getDefault().toString();
+            if (!locale.equals(mPrefs.getString(KEY_LOCALE, null))) {
+                mPrefs.edit().clear().putString(KEY_LOCALE, locale).apply();
+            }
+        }
+        return mPrefs;
+    }
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            mPackageGeneration++;
+            final int uid = intent.getIntExtra(Intent.EXTRA_UID, -1);
+            if (uid != -1) {
+                invalidate(uid);
+            }
+        }
+    };
+
+    private final BroadcastReceiver mLocaleReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            mLabels.clear();
+            synchronized (mPendingWrites) {
+                mPendingWrites.clear();
+            }
+            synchronized (UidLabelCache.this) {
+                mPrefs = null;
+            }
+        }
+    };
+}
@@ -415,13 +415,8 @@ public class ChartDataUsageView extends ChartView {
         mSeries.setBounds(visibleStart, visibleEnd);
         mDetailSeries.setBounds(visibleStart, visibleEnd);
 
-        final long historyStart = getHistoryStart();
-        final long historyEnd = getHistoryEnd();
-
-        final long validStart = historyStart == Long.MAX_VALUE ? visibleStart
-                : Math.max(visibleStart, historyStart);
-        final long validEnd = historyEnd == Long.MIN_VALUE ? visibleEnd
-                : Math.min(visibleEnd, historyEnd);
+        final long validStart = getValidStart(visibleStart);
+        final long validEnd = getValidEnd(visibleEnd);
 
         if (LIMIT_SWEEPS_TO_VALID_DATA) {
             // prevent time sweeps from leaving valid data
@@ -433,12 +428,8 @@ public class ChartDataUsageView extends ChartView {
         }
 
         // default sweeps to last week of data
-        final long halfRange = (visibleEnd + visibleStart) / 2;
-        final long sweepMax = validEnd;
-        final long sweepMin = Math.max(visibleStart, (sweepMax - DateUtils.WEEK_IN_MILLIS));
-
-        mSweepLeft.setValue(sweepMin);
-        mSweepRight.setValue(sweepMax);
+        mSweepLeft.setValue(getDefaultInspectStart(visibleStart, visibleEnd));
+        mSweepRight.setValue(getDefaultInspectEnd(visibleStart, visibleEnd));
 
         requestLayout();
         if (changed) {
@@ -451,6 +442,34 @@ public class ChartDataUsageView extends ChartView {
         updatePrimaryRange();
     }
 
+    private long getValidStart(long visibleStart) {
+        final long historyStart = getHistoryStart();
+        return historyStart == Long.MAX_VALUE ? visibleStart
+                : Math.max(visibleStart, historyStart);
+    }
+
+    private long getValidEnd(long visibleEnd) {
+        final long historyEnd = getHistoryEnd();
+        return historyEnd == Long.MIN_VALUE ? visibleEnd : Math.min(visibleEnd, historyEnd);
+    }
+
+    /**
+     * Return inspection start that {@link #setVisibleRange(long, long)} picks
+     * for the given visible range: one week before the end of valid data.
+     */
+    public long getDefaultInspectStart(long visibleStart, long visibleEnd) {
+        final long sweepMax = getDefaultInspectEnd(visibleStart, visibleEnd);
+        return Math.max(visibleStart, (sweepMax - DateUtils.WEEK_IN_MILLIS));
+    }
+
+    /**
+     * Return inspection end that {@link #setVisibleRange(long, long)} picks
+     * for the given visible range: the end of valid data.
+     */
+    public long getDefaultInspectEnd(long visibleStart, long visibleEnd) {
+        return getValidEnd(visibleEnd);
+    }
+
     private void updatePrimaryRange() {
         final long left = mSweepLeft.getValue();
         final long right = mSweepRight.getValue();
@@ -36,6 +36,8 @@ import android.view.View;
 import com.android.settings.R;
 import com.google.common.base.Preconditions;
 
+import java.util.Arrays;
+
 /**
  * {@link NetworkStatsHistory} series to render inside a {@link ChartView},
  * using {@link ChartAxis} to map into screen coordinates.
@@ -70,6 +72,25 @@ public class ChartNetworkSeriesView extends View {
     private boolean mPathValid = false;
     private boolean mEstimateVisible = false;
 
+    /**
+     * Series decimated to at most two points per horizontal pixel column, as
+     * raw time and cumulative data values. Kept across {@link #invalidatePath()}
+     * so paths can be rebuilt against a new vertical axis without walking
+     * {@link #mStats} again.
+     */
+    private long[] mPointTimes = new long[64];
+    private long[] mPointValues = new long[64];
+    private int mPointCount;
+    private int mEstimateStart;
+    private long mPointsLastTime;
+    private long mPointsTotal;
+    private long mPointsEstimateTotal;
+    private boolean mPointsValid = false;
+    private int mPointsWidth;
+
+    private int mLastColumn;
+    private int mColumnPoints;
+
     private long mMax;
     private long mMaxEstimate;
 
@@ -134,15 +155,26 @@ public class ChartNetworkSeriesView extends View {
 
     public void bindNetworkStats(NetworkStatsHistory stats) {
         mStats = stats;
+        mPointsValid = false;
         invalidatePath();
         invalidate();
     }
 
     public void setBounds(long start, long end) {
+        if (mStart != start || mEnd != end) {
+            mPointsValid = false;
+        }
         mStart = start;
         mEnd = end;
     }
 
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        mPointsValid = false;
+        mPathValid = false;
+    }
+
     /**
      * Set the range to paint with {@link #mPaintFill}, leaving the remaining
      * area to be painted with {@link #mPaintFillSecondary}.
@@ -160,17 +192,23 @@ public class ChartNetworkSeriesView extends View {
     }
 
     /**
-     * Erase any existing {@link Path} and generate series outline based on
-     * currently bound {@link NetworkStatsHistory} data.
+     * Walk currently bound {@link NetworkStatsHistory} and collapse it into
+     * {@link #mPointTimes} and {@link #mPointValues}, keeping the first and
+     * last point in each pixel column. Since data is cumulative, those are
+     * the smallest and largest value in the column, so the rendered outline
+     * doesn't change.
      */
-    private void generatePath() {
-        if (LOGD) Log.d(TAG, "generatePath()");
-
-        mMax = 0;
-        mPathStroke.reset();
-        mPathFill.reset();
-        mPathEstimate.reset();
-        mPathValid = true;
+    private void decimate() {
+        if (LOGD) Log.d(TAG, "decimate()");
+
+        mPointCount = 0;
+        mEstimateStart = 0;
+        mPointsTotal = 0;
+        mPointsEstimateTotal = 0;
+        mPointsValid = true;
+        mPointsWidth = getWidth();
+        mLastColumn = Integer.MIN_VALUE;
+        mColumnPoints = 0;
 
         // bail when not enough stats to render
         if (mStats == null || mStats.size() < 2) {
@@ -178,16 +216,8 @@ public class ChartNetworkSeriesView extends View {
         }
 
         final int width = getWidth();
-        final int height = getHeight();
-
-        boolean started = false;
-        float lastX = 0;
-        float lastY = height;
-        long lastTime = mHoriz.convertToValue(lastX);
 
-        // move into starting position
-        mPathStroke.moveTo(lastX, lastY);
-        mPathFill.moveTo(lastX, lastY);
+        long lastTime = mHoriz.convertToValue(0);
 
         // TODO: count fractional data from first bucket crossing start;
         // currently it only accepts first full bucket.
@@ -204,57 +234,28 @@ public class ChartNetworkSeriesView extends View {
             final long startTime = entry.bucketStart;
             final long endTime = startTime + entry.bucketDuration;
 
-            final float startX = mHoriz.convertToPoint(startTime);
-            final float endX = mHoriz.convertToPoint(endTime);
-
             // skip until we find first stats on screen
-            if (endX < 0) continue;
-
-            // increment by current bucket total
-            totalData += entry.rxBytes + entry.txBytes;
-
-            final float startY = lastY;
-            final float endY = mVert.convertToPoint(totalData);
+            if (mHoriz.convertToPoint(endTime) < 0) continue;
 
             if (lastTime != startTime) {
                 // gap in buckets; line to start of current bucket
-                mPathStroke.lineTo(startX, startY);
-                mPathFill.lineTo(startX, startY);
+                addPoint(startTime, totalData);
             }
 
-            // always draw to end of current bucket
-            mPathStroke.lineTo(endX, endY);
-            mPathFill.lineTo(endX, endY);
+            // increment by current bucket total, and always draw to end of
+            // current bucket
+            totalData += entry.rxBytes + entry.txBytes;
+            addPoint(endTime, totalData);
 
-            lastX = endX;
-            lastY = endY;
             lastTime = endTime;
         }
 
-        // when data falls short, extend to requested end time
-        if (lastTime < mEndTime) {
-            lastX = mHoriz.convertToPoint(mEndTime);
-
-            mPathStroke.lineTo(lastX, lastY);
-            mPathFill.lineTo(lastX, lastY);
-        }
-
-        if (LOGD) {
-            final RectF bounds = new RectF();
-            mPathFill.computeBounds(bounds, true);
-            Log.d(TAG, "onLayout() rendered with bounds=" + bounds.toString() + " and totalData="
-                    + totalData);
-        }
-
-        // drop to bottom of graph from current location
-        mPathFill.lineTo(lastX, height);
-        mPathFill.lineTo(0, height);
-
-        mMax = totalData;
+        mPointsLastTime = lastTime;
+        mPointsTotal = totalData;
+        mEstimateStart = mPointCount;
+        mLastColumn = Integer.MIN_VALUE;
 
         // build estimated data
-        mPathEstimate.moveTo(lastX, lastY);
-
         final long now = System.currentTimeMillis();
         final long bucketDuration = mStats.getBucketDuration();
 
@@ -263,6 +264,8 @@ public class ChartNetworkSeriesView extends View {
         final long longWindow = (entry.rxBytes + entry.txBytes) * bucketDuration
                 / entry.bucketDuration;
 
+        // estimate starts after any extension to requested end time
+        float lastX = mHoriz.convertToPoint(lastTime < mEndTime ? mEndTime : lastTime);
         long futureTime = 0;
         while (lastX < width) {
             futureTime += bucketDuration;
@@ -276,17 +279,122 @@ public class ChartNetworkSeriesView extends View {
             totalData += (longWindow * 7 + shortWindow * 3) / 10;
 
             lastX = mHoriz.convertToPoint(lastTime + futureTime);
-            lastY = mVert.convertToPoint(totalData);
+            addPoint(lastTime + futureTime, totalData);
+        }
+
+        mPointsEstimateTotal = totalData;
 
-            mPathEstimate.lineTo(lastX, lastY);
+        if (LOGD) {
+            Log.d(TAG, "decimate() kept " + mPointCount + " points from " + (end - start + 1)
+                    + " buckets for width=" + width);
         }
+    }
 
-        mMaxEstimate = totalData;
+    /**
+     * Append point, replacing the last one when it would be a third point in
+     * the same pixel column.
+     */
+    private void addPoint(long time, long value) {
+        final int column = (int) mHoriz.convertToPoint(time);
+        if (column == mLastColumn) {
+            if (mColumnPoints == 2) {
+                mPointTimes[mPointCount - 1] = time;
+                mPointValues[mPointCount - 1] = value;
+                return;
+            }
+            mColumnPoints++;
+        } else {
+            mLastColumn = column;
+            mColumnPoints = 1;
+        }
+
+        if (mPointCount == mPointTimes.length) {
+            final int size = mPointCount * 2;
+            mPointTimes = Arrays.copyOf(mPointTimes, size);
+            mPointValues = Arrays.copyOf(mPointValues, size);
+        }
+        mPointTimes[mPointCount] = time;
+        mPointValues[mPointCount] = value;
+        mPointCount++;
+    }
+
+    /**
+     * Erase any existing {@link Path} and generate series outline based on
+     * currently bound {@link NetworkStatsHistory} data, decimating it first
+     * when needed.
+     */
+    private void generatePath() {
+        if (LOGD) Log.d(TAG, "generatePath()");
+
+        if (!mPointsValid || mPointsWidth != getWidth()) {
+            decimate();
+        }
+
+        mMax = 0;
+        mPathStroke.reset();
+        mPathFill.reset();
+        mPathEstimate.reset();
+        mPathValid = true;
+
+        // bail when not enough stats to render
+        if (mStats == null || mStats.size() < 2) {
+            return;
+        }
+
+        final int height = getHeight();
+
+        float lastX = 0;
+        float lastY = height;
+
+        // move into starting position
+        mPathStroke.moveTo(lastX, lastY);
+        mPathFill.moveTo(lastX, lastY);
+
+        for (int i = 0; i < mEstimateStart; i++) {
+            lastX = mHoriz.convertToPoint(mPointTimes[i]);
+            lastY = mVert.convertToPoint(mPointValues[i]);
+            mPathStroke.lineTo(lastX, lastY);
+            mPathFill.lineTo(lastX, lastY);
+        }
+
+        // when data falls short, extend to requested end time
+        if (mPointsLastTime < mEndTime) {
+            final float endX = mHoriz.convertToPoint(mEndTime);
+
+            mPathStroke.lineTo(endX, lastY);
+            mPathFill.lineTo(endX, lastY);
+            lastX = endX;
+        }
+
+        if (LOGD) {
+            final RectF bounds = new RectF();
+            mPathFill.computeBounds(bounds, true);
+            Log.d(TAG, "onLayout() rendered with bounds=" + bounds.toString() + " and totalData="
+                    + mPointsTotal);
+        }
+
+        // drop to bottom of graph from current location
+        mPathFill.lineTo(lastX, height);
+        mPathFill.lineTo(0, height);
+
+        mMax = mPointsTotal;
+
+        // build estimated data
+        mPathEstimate.moveTo(lastX, lastY);
+        for (int i = mEstimateStart; i < mPointCount; i++) {
+            mPathEstimate.lineTo(mHoriz.convertToPoint(mPointTimes[i]),
+                    mVert.convertToPoint(mPointValues[i]));
+        }
+
+        mMaxEstimate = mPointsEstimateTotal;
 
         invalidate();
     }
 
     public void setEndTime(long endTime) {
+        if (mEndTime != endTime) {
+            mPointsValid = false;
+        }
         mEndTime = endTime;
     }
 
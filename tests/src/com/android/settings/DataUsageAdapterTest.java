@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import static android.net.NetworkStats.SET_DEFAULT;
+import static android.net.NetworkStats.SET_FOREGROUND;
+import static android.net.NetworkStats.TAG_NONE;
+
+import android.net.NetworkStats;
+import android.os.Process;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.SparseArray;
+
+import com.android.settings.DataUsageSummary.DataUsageAdapter;
+import com.android.settings.net.IntLongAccumulator;
+import com.android.settings.net.UidDetailProvider;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * Checks {@link DataUsageAdapter#bindStats} ordering against a plain sum and
+ * full sort, over synthetic 5,000 entry {@link NetworkStats}.
+ */
+public class DataUsageAdapterTest extends AndroidTestCase {
+    private static final int NUM_ENTRIES = 5000;
+    private static final int NUM_APP_UIDS = 1200;
+    private static final int NUM_SYSTEM_UIDS = 40;
+
+    private static final String[] IFACES = { "rmnet0", "wlan0" };
+
+    private NetworkStats makeStats(long seed) {
+        final Random random = new Random(seed);
+        final NetworkStats stats = new NetworkStats(SystemClock.elapsedRealtime(), NUM_ENTRIES);
+        for (int i = 0; i < NUM_ENTRIES; i++) {
+            final int uid;
+            if (random.nextInt(20) == 0) {
+                uid = random.nextInt(NUM_SYSTEM_UIDS);
+            } else {
+                uid = Process.FIRST_APPLICATION_UID + random.nextInt(NUM_APP_UIDS);
+            }
+            final String iface = IFACES[random.nextInt(IFACES.length)];
+            final int set = random.nextBoolean() ? SET_DEFAULT : SET_FOREGROUND;
+            final long rxBytes = random.nextInt(1 << 24);
+            final long txBytes = random.nextInt(1 << 20);
+            stats.addValues(iface, uid, set, TAG_NONE, rxBytes, rxBytes / 1024, txBytes,
+                    txBytes / 1024, 0);
+        }
+        return stats;
+    }
+
+    private static boolean isApp(int uid) {
+        return uid >= Process.FIRST_APPLICATION_UID && uid <= Process.LAST_APPLICATION_UID;
+    }
+
+    /**
+     * Totals by row id, the way {@link DataUsageAdapter} groups them.
+     */
+    private static IntLongAccumulator sumByRow(NetworkStats stats) {
+        final IntLongAccumulator totals = new IntLongAccumulator();
+        NetworkStats.Entry entry = null;
+        for (int i = 0; i < stats.size(); i++) {
+            entry = stats.getValues(i, entry);
+            final int row = isApp(entry.uid) ? entry.uid : Process.SYSTEM_UID;
+            totals.add(row, entry.rxBytes + entry.txBytes);
+        }
+        return totals;
+    }
+
+    private static class Item implements Comparable<Item> {
+        public final int uid;
+        public long total;
+
+        public Item(int uid) {
+            this.uid = uid;
+        }
+
+        public int compareTo(Item another) {
+            return Long.compare(another.total, total);
+        }
+    }
+
+    /**
+     * Aggregation as previously done by the adapter, for comparison.
+     */
+    private static ArrayList<Item> bindStatsReference(NetworkStats stats) {
+        final ArrayList<Item> items = new ArrayList<Item>();
+        final Item systemItem = new Item(Process.SYSTEM_UID);
+        final SparseArray<Item> knownUids = new SparseArray<Item>();
+        NetworkStats.Entry entry = null;
+        for (int i = 0; i < stats.size(); i++) {
+            entry = stats.getValues(i, entry);
+            if (isApp(entry.uid)) {
+                Item item = knownUids.get(entry.uid);
+                if (item == null) {
+                    item = new Item(entry.uid);
+                    knownUids.put(entry.uid, item);
+                    items.add(item);
+                }
+                item.total += entry.rxBytes + entry.txBytes;
+            } else {
+                systemItem.total += entry.rxBytes + entry.txBytes;
+            }
+        }
+        if (systemItem.total > 0) {
+            items.add(systemItem);
+        }
+        Collections.sort(items);
+        return items;
+    }
+
+    public void testAccumulator() {
+        final IntLongAccumulator accumulator = new IntLongAccumulator(4);
+        final SparseArray<Long> expected = new SparseArray<Long>();
+        final Random random = new Random(42);
+        for (int i = 0; i < NUM_ENTRIES; i++) {
+            final int key = random.nextInt(NUM_APP_UIDS) * 37 - 1000;
+            final long value = random.nextInt(1000);
+            accumulator.add(key, value);
+            final Long old = expected.get(key);
+            expected.put(key, (old != null ? old : 0) + value);
+        }
+        assertEquals(expected.size(), accumulator.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals((long) expected.valueAt(i), accumulator.get(expected.keyAt(i)));
+        }
+        assertEquals(0, accumulator.get(Integer.MAX_VALUE));
+
+        accumulator.clear();
+        assertEquals(0, accumulator.size());
+        assertEquals(-1, accumulator.indexOfKey(expected.keyAt(0)));
+    }
+
+    public void testMatchesFullSort() {
+        final NetworkStats stats = makeStats(1234);
+        final DataUsageAdapter adapter = new DataUsageAdapter(
+                new UidDetailProvider(getContext()), 0);
+        adapter.bindStats(stats);
+
+        final IntLongAccumulator totals = sumByRow(stats);
+        final ArrayList<Item> reference = bindStatsReference(stats);
+        assertEquals(reference.size(), adapter.getCount());
+
+        // rows with equal totals may come in either order
+        final IntLongAccumulator seen = new IntLongAccumulator();
+        long last = Long.MAX_VALUE;
+        for (int i = 0; i < adapter.getCount(); i++) {
+            final int uid = (int) adapter.getItemId(i);
+            final long total = totals.get(uid);
+            assertTrue("row " + i + " out of order", total <= last);
+            assertEquals(reference.get(i).total, total);
+            assertEquals(-1, seen.indexOfKey(uid));
+            seen.add(uid, 0);
+            last = total;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.pm.ApplicationInfo;
+import android.test.AndroidTestCase;
+
+import com.android.settings.applications.ApplicationsState.AppEntry;
+
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+
+/**
+ * Checks that sorting entries with the collation keys cached on
+ * {@link AppEntry} gives the same order as collating the raw labels on every
+ * comparison, as the comparators used to, for 1,500 synthetic entries.
+ */
+public class AppEntryCollationTest extends AndroidTestCase {
+    private static final int NUM_APPS = 1500;
+
+    private static final String[] WORDS = {
+        "Android", "Browser", "Calendar", "Camera", "Clock", "Contacts", "Email",
+        "Gallery", "Maps", "Messaging", "Music", "News", "Phone", "Settings",
+        "Café", "École", "Über", "naïve", "résumé",
+    };
+
+    private static final Comparator<AppEntry> LABEL_COMPARATOR = new Comparator<AppEntry>() {
+        private final Collator sCollator = Collator.getInstance();
+        @Override
+        public int compare(AppEntry object1, AppEntry object2) {
+            if (object1.info.enabled != object2.info.enabled) {
+                return object1.info.enabled ? -1 : 1;
+            }
+            return sCollator.compare(object1.label, object2.label);
+        }
+    };
+
+    private ArrayList<AppEntry> makeEntries() {
+        Random random = new Random(4321);
+        ArrayList<AppEntry> entries = new ArrayList<AppEntry>(NUM_APPS);
+        for (int i=0; i<NUM_APPS; i++) {
+            ApplicationInfo info = new ApplicationInfo();
+            info.packageName = "com.example.app" + i;
+            info.sourceDir = "/nonexistent/app" + i + ".apk";
+            info.enabled = random.nextInt(20) != 0;
+            AppEntry entry = new AppEntry(getContext(), info, i + 1);
+            entry.label = WORDS[random.nextInt(WORDS.length)] + " "
+                    + WORDS[random.nextInt(WORDS.length)] + " " + i;
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    public void testSameOrderAsLabelCollation() {
+        ArrayList<AppEntry> byLabel = makeEntries();
+        ArrayList<AppEntry> byKey = new ArrayList<AppEntry>(byLabel);
+        Collections.sort(byLabel, LABEL_COMPARATOR);
+        Collections.sort(byKey, ApplicationsState.ALPHA_COMPARATOR);
+        assertEquals(byLabel, byKey);
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.pm.ApplicationInfo;
+import android.test.AndroidTestCase;
+
+import com.android.settings.applications.ApplicationsState.AppEntry;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Checks {@link AppLabelIndex} against the linear label scan it replaces, over
+ * a synthetic set of 2,000 application labels.
+ */
+public class AppLabelIndexTest extends AndroidTestCase {
+    private static final int NUM_APPS = 2000;
+
+    private static final String[] SYLLABLES = {
+        "an", "droid", "go", "ma", "ps", "mes", "sage", "ca", "len", "dar",
+        "pho", "to", "mu", "sic", "play", "er", "note", "book", "web", "chat",
+    };
+
+    private static final String[] TYPED = {
+        "g", "go", "goo", "m", "ma", "map", "c", "ca", "cal", "not", "note", "p", "pl",
+    };
+
+    private ArrayList<AppEntry> makeEntries() {
+        Random random = new Random(1234);
+        ArrayList<AppEntry> entries = new ArrayList<AppEntry>(NUM_APPS);
+        for (int i=0; i<NUM_APPS; i++) {
+            StringBuilder label = new StringBuilder();
+            int words = 1 + random.nextInt(3);
+            for (int w=0; w<words; w++) {
+                if (w > 0) {
+                    label.append(' ');
+                }
+                int syllables = 1 + random.nextInt(3);
+                for (int s=0; s<syllables; s++) {
+                    label.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+                }
+            }
+            ApplicationInfo info = new ApplicationInfo();
+            info.packageName = "com.example.app" + i;
+            info.sourceDir = "/nonexistent/app" + i + ".apk";
+            AppEntry entry = new AppEntry(getContext(), info, i + 1);
+            entry.label = label.toString();
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    public void testMatchesLinearScan() {
+        ArrayList<AppEntry> entries = makeEntries();
+        AppLabelIndex index = AppLabelIndex.build(entries);
+        AppLabelIndex.Result indexed = null;
+        AppLabelIndex.Result linear = null;
+        for (String prefix : TYPED) {
+            indexed = index.query(prefix, indexed);
+            AppLabelIndex.Result full = AppLabelIndex.queryLinear(entries, prefix, null);
+            linear = AppLabelIndex.queryLinear(entries, prefix, linear);
+            assertEquals(prefix, full.entries, indexed.entries);
+            assertEquals(prefix, full.entries, linear.entries);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.pm.ApplicationInfo;
+import android.test.AndroidTestCase;
+
+import com.android.settings.applications.ApplicationsState.AppEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * Checks that moving the entries whose size changed in {@link SortedAppEntries}
+ * gives the same order as sorting the whole list again.
+ */
+public class SortedAppEntriesTest extends AndroidTestCase {
+    private static final int NUM_APPS = 200;
+    private static final int ROUNDS = 50;
+
+    private ArrayList<AppEntry> makeEntries(int count) {
+        ArrayList<AppEntry> entries = new ArrayList<AppEntry>(count);
+        for (int i=0; i<count; i++) {
+            ApplicationInfo info = new ApplicationInfo();
+            info.packageName = "com.example.app" + i;
+            info.sourceDir = "/nonexistent/app" + i + ".apk";
+            info.enabled = true;
+            AppEntry entry = new AppEntry(getContext(), info, i + 1);
+            entry.label = "App " + i;
+            entry.size = (count - i) * 2;
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    private SortedAppEntries build(ArrayList<AppEntry> entries) {
+        SortedAppEntries view = new SortedAppEntries(null, ApplicationsState.SIZE_COMPARATOR);
+        ArrayList<AppEntry> sorted = new ArrayList<AppEntry>(entries);
+        Collections.sort(sorted, ApplicationsState.SIZE_COMPARATOR);
+        view.setBuilt(view.startBuild(), sorted);
+        return view;
+    }
+
+    private static void assertSorted(ArrayList<AppEntry> entries, ArrayList<AppEntry> actual) {
+        ArrayList<AppEntry> expected = new ArrayList<AppEntry>(entries);
+        Collections.sort(expected, ApplicationsState.SIZE_COMPARATOR);
+        assertEquals(expected, actual);
+    }
+
+    public void testSeveralMovesInOneUpdate() {
+        ArrayList<AppEntry> entries = makeEntries(NUM_APPS);
+        SortedAppEntries view = build(entries);
+
+        // Two neighbours shrinking past each other: the second one moved
+        // must not be placed while the first one is still out of order.
+        AppEntry first = entries.get(10);
+        AppEntry second = entries.get(9);
+        first.size = entries.get(14).size - 1;
+        second.size = entries.get(20).size - 1;
+        view.noteSizeChanged(first);
+        view.noteSizeChanged(second);
+        assertSorted(entries, view.update(null));
+    }
+
+    public void testRandomMovesMatchFullSort() {
+        ArrayList<AppEntry> entries = makeEntries(NUM_APPS);
+        SortedAppEntries view = build(entries);
+        Random random = new Random(5678);
+        int maxMoves = NUM_APPS / SortedAppEntries.MAX_MOVES_DIVISOR;
+        for (int round=0; round<ROUNDS; round++) {
+            int moves = 2 + random.nextInt(maxMoves - 1);
+            for (int i=0; i<moves; i++) {
+                AppEntry entry = entries.get(random.nextInt(entries.size()));
+                entry.size = random.nextInt(NUM_APPS * 2);
+                view.noteSizeChanged(entry);
+            }
+            assertSorted(entries, view.update(null));
+        }
+    }
+
+    public void testUnchangedListIsReused() {
+        ArrayList<AppEntry> entries = makeEntries(NUM_APPS);
+        SortedAppEntries view = build(entries);
+        ArrayList<AppEntry> published = view.update(null);
+
+        // Sizes change without changing the order.
+        AppEntry entry = entries.get(50);
+        entry.size += 1;
+        view.noteSizeChanged(entry);
+        entry = entries.get(120);
+        entry.size -= 1;
+        view.noteSizeChanged(entry);
+        assertSame(published, view.update(null));
+    }
+}